@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.app;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.classicomp.chip8.emu.FrameExchange;
+import com.classicomp.chip8.emu.VideoAdapter;
+
+// Rendering of a half-lit framebuffer to an offscreen image: the whole
+// frame, and a typical frame where one 5-row sprite moved, handed over
+// through a FrameExchange as in the application
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+
+    VideoAdapter video;
+    FrameExchange frames;
+    RasterDisplay display;
+    BufferedImage image;
+    Graphics graphics;
+
+    @Setup
+    public void setup() {
+        video = new VideoAdapter();
+        Random random = new Random(42);
+        for (int k = 0; k < VideoAdapter.MEMORY_SIZE; k++) {
+            video.memoryWrite(k, (byte) (random.nextBoolean() ? 1 : 0));
+        }
+
+        frames = new FrameExchange();
+        video.setDisplaySink(frames);
+        video.updateDisplay();
+        display = new RasterDisplay(null);
+        image = new BufferedImage(display.getWidth(), display.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        graphics = image.getGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage renderFrame() {
+        display.invalidate();
+        display.update(frames.take());
+        display.paint(graphics, 0, 0);
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage renderSpriteFrame() {
+        for (int y = 10; y < 15; y++) {
+            video.drawSpriteRow(20, y, 0xf0);
+        }
+        video.updateDisplay();
+        display.update(frames.take());
+        display.paintRows(graphics, 0, 0);
+        return image;
+    }
+}
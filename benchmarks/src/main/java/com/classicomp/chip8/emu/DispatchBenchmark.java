@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Raw instruction dispatch over synthetic opcode mixes. Scores are
+// instructions per second.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    static final int BUDGET = 1000;
+
+    // Register arithmetic and logic
+    static final int[] ALU = {
+        0x6001, 0x6102, 0x6203,
+        0x8014, 0x8124, 0x8203, 0x7005, 0x8106, 0x820E, 0x8301, 0x8432,
+        0x7103, 0x8015, 0x8127, 0x8654, 0x1206
+    };
+
+    // Skips, jumps, calls and returns
+    static final int[] BRANCH = {
+        0x6000,
+        0x7001, 0x3080, 0x120A, 0x6000, 0x4000, 0x1202, 0x2214, 0x1202,
+        0x0000,
+        0x5010, 0x9010, 0x00EE, 0x00EE
+    };
+
+    // Index register arithmetic, BCD, register stores and loads
+    static final int[] MEMORY = {
+        0x6000,
+        0xA300, 0xF033, 0xF265, 0xA310, 0xF355, 0xF11E, 0xF229, 0x7301,
+        0x1202
+    };
+
+    @Param({"alu", "branch", "memory"})
+    String mix;
+
+    @Param({"false", "true"})
+    boolean jit;
+
+    EmulatorCore core;
+
+    @Setup
+    public void setup() {
+        core = new EmulatorCore();
+        core.reset();
+        core.setJitEnabled(jit);
+
+        int[] program = "alu".equals(mix) ? ALU : "branch".equals(mix) ? BRANCH : MEMORY;
+        load(core, program);
+    }
+
+    static void load(EmulatorCore core, int[] program) {
+        for (int a = 0; a < program.length; a++) {
+            core.memory[2 * a] = (short) (program[a] >>> 8);
+            core.memory[2 * a + 1] = (short) (program[a] & 0xff);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUDGET)
+    public int dispatch() throws Exception {
+        return core.cycles(BUDGET);
+    }
+}
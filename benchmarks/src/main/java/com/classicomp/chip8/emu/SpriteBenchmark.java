@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DXYN through the interpreter. An invocation draws 64 disjoint 8x4
+// sprites covering the whole screen, either on an empty screen (no
+// collisions) or on a lit one (every sprite collides). The screen is set
+// back at the start of each invocation, 32 row stores that are counted
+// in the score.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpriteBenchmark {
+
+    static final int SPRITES = 64;
+    static final int SPRITE_DATA = 0x100;
+
+    @Param({"false", "true"})
+    boolean collisions;
+
+    EmulatorCore core;
+
+    @Setup
+    public void setup() {
+        core = new EmulatorCore();
+        core.reset();
+
+        // 0: D014
+        core.memory[0] = 0xD0;
+        core.memory[1] = 0x14;
+        for (int a = 0; a < 4; a++) {
+            core.memory[SPRITE_DATA + a] = 0xFF;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SPRITES)
+    public int drawSprite() throws Exception {
+        long fill = collisions ? -1L : 0L;
+        for (int y = 0; y < 32; y++) {
+            core.video.setRow(y, fill);
+        }
+        int flags = 0;
+        core.i = SPRITE_DATA;
+        for (int k = 0; k < SPRITES; k++) {
+            core.v[0] = (byte) ((k & 7) * 8);
+            core.v[1] = (byte) ((k >>> 3) * 4);
+            core.pc = 0;
+            core.execute();
+            flags += core.v[0x0f];
+        }
+        return flags;
+    }
+}
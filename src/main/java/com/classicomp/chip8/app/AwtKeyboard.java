@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.app;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+
+import com.classicomp.chip8.emu.Keyboard;
+
+// Forwards AWT key events to the emulated keypad
+public class AwtKeyboard extends KeyAdapter {
+
+    private final Keyboard keyboard;
+
+    public AwtKeyboard(Keyboard keyboard) {
+        this.keyboard = keyboard;
+    }
+
+    @Override
+    public void keyPressed(KeyEvent e) {
+        keyboard.keyPressed(e.getKeyCode());
+    }
+
+    @Override
+    public void keyReleased(KeyEvent e) {
+        keyboard.keyReleased(e.getKeyCode());
+    }
+}
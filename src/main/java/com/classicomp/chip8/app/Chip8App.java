@@ -20,7 +20,7 @@ import java.awt.Event;
 import java.awt.EventQueue;
 import java.awt.FileDialog;
 import java.awt.Frame;
-import java.awt.Image;
+import java.awt.Insets;
 import java.awt.Graphics;
 import java.awt.Menu;
 import java.awt.MenuBar;
@@ -28,18 +28,23 @@ import java.awt.MenuItem;
 import java.awt.Toolkit;
 import javax.swing.SwingWorker;
 
+import com.classicomp.chip8.emu.AudioEngine;
 import com.classicomp.chip8.emu.EmulatorCore;
+import com.classicomp.chip8.emu.FrameExchange;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import javax.swing.JOptionPane;
 
 public class Chip8App extends Frame {
 
+    static final String TITLE = "Classicomp Chip-8";
+
     EmulatorCore emu;
-    Image display;
+    RasterDisplay display;
+    FrameExchange frames;
 
     public Chip8App() {
-        super("Classicomp Chip-8");
+        super(TITLE);
 
         initMenu();
 
@@ -61,13 +66,35 @@ public class Chip8App extends Frame {
 
         try {
             emu = new EmulatorCore();
-            addKeyListener(emu.getKeyboard());
+            addKeyListener(new AwtKeyboard(emu.getKeyboard()));
+
+            // the emulator thread only publishes frames and asks for a
+            // repaint; everything AWT happens on the event thread
+            display = new RasterDisplay(this);
+            frames = new FrameExchange();
+            frames.setFrameListener(new Runnable() {
+                @Override
+                public void run() {
+                    repaint();
+                }
+            });
+            emu.setDisplaySink(frames);
+
+            // runs silent when the host has no audio output
+            LineSink speaker = LineSink.open();
+            if (speaker != null) {
+                emu.setAudioEngine(new AudioEngine(speaker));
+            }
 
-            display = createImage(emu.getVideoAdapter().getScreenWidth() * emu.getVideoAdapter().getScale() + 5,
-                    emu.getVideoAdapter().getScreenHeiht() * emu.getVideoAdapter().getScale() + 4 + 50);
-            
-            emu.setDisplayContainer(this);
-            emu.setDisplay(display.getGraphics());
+            setResizable(false);
+            Insets insets = getInsets();
+            setSize(display.getWidth() + insets.left + insets.right,
+                    display.getHeight() + insets.top + insets.bottom);
+
+            // visible from JConsole as com.classicomp.chip8:type=Emulator
+            emu.setMetricsEnabled(true);
+            emu.getMetrics().startSampling(1000, null);
+            emu.getMetrics().register("Chip8App");
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -84,10 +111,48 @@ public class Chip8App extends Frame {
 
     }
 
+    // Opens the window with romPath already running, for Launcher
+    static void open(final String romPath) {
+        EventQueue.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                Chip8App app = new Chip8App();
+                if (app.start(romPath)) {
+                    app.getMenuBar().getMenu(0).getItem(0).setEnabled(false);
+                }
+            }
+        });
+    }
+
+    // Called for repaint(), after a new frame: only the rows that changed
+    // are drawn. The display covers the whole client area, so there is
+    // nothing to clear first.
     public void update(Graphics g) {
-        g = getGraphics();
-        g.drawImage(display, 0, 20, display.getWidth(this), display.getHeight(this), null);
-        paint(g);
+        if (display != null) {
+            display.update(frames.take());
+            Insets insets = getInsets();
+            display.paintRows(g, insets.left, insets.top);
+            if (emu.getScheduler().isTurbo()) {
+                showSpeed();
+            }
+        }
+    }
+
+    // Shows how many times faster than real time the turbo runs
+    private void showSpeed() {
+        String title = String.format("%s - turbo %.0fx", TITLE,
+                emu.getScheduler().getMeasuredSpeed());
+        if (!title.equals(getTitle())) {
+            setTitle(title);
+        }
+    }
+
+    // Called when the window needs all of it drawn again
+    public void paint(Graphics g) {
+        if (display != null) {
+            display.update(frames.take());
+            display.paint(g);
+        }
     }
 
     // @TODO: consider turn menu variables into class attributes
@@ -103,6 +168,12 @@ public class Chip8App extends Frame {
 
         menuBar.add(menuFile);
 
+        Menu menuSpeed = new Menu("Speed");
+        menuSpeed.add(new MenuItem("Real Time"));
+        menuSpeed.add(new MenuItem("Turbo"));
+
+        menuBar.add(menuSpeed);
+
         Menu menuHelp = new Menu("Help");
         MenuItem miAbout = new MenuItem("About");
 
@@ -125,6 +196,15 @@ public class Chip8App extends Frame {
                 System.exit(0);
                 return true;
             }
+            if (miTarget.getLabel().equals("Real Time")) {
+                emu.getScheduler().setTurbo(false);
+                setTitle(TITLE);
+                return true;
+            }
+            if (miTarget.getLabel().equals("Turbo")) {
+                emu.getScheduler().setTurbo(true);
+                return true;
+            }
             if (miTarget.getLabel().equals("About")) {
                 JOptionPane.showMessageDialog(this, "Developed by Alessandro Ramos da Silva");
             }
@@ -142,26 +222,31 @@ public class Chip8App extends Frame {
         fileDialog.show();
         
         if (fileDialog.getFile() != null) {
-            String romPath = fileDialog.getDirectory() + fileDialog.getFile();
-            try {
-                this.emu.loadRom(romPath);
-
-                SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
-                    @Override
-                    protected Void doInBackground() throws Exception {
-                        Chip8App.this.emu.run();
-                        return null;
-                    }
-                };
-                worker.execute();
-                
-                return true;
-            } catch(Exception e) {
-                System.out.println(e.toString());
-            }
+            return start(fileDialog.getDirectory() + fileDialog.getFile());
         }
         
         return false;
     }
 
+    // Loads the ROM and runs it in real time on a worker thread
+    boolean start(String romPath) {
+        try {
+            this.emu.loadRom(romPath);
+
+            SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    Chip8App.this.emu.run();
+                    return null;
+                }
+            };
+            worker.execute();
+
+            return true;
+        } catch(Exception e) {
+            System.out.println(e.toString());
+        }
+        return false;
+    }
+
 }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.classicomp.chip8.emu.AudioEngine;
+import com.classicomp.chip8.emu.EmulatorCore;
+import com.classicomp.chip8.emu.RomImage;
+import com.classicomp.chip8.emu.WaveFileSink;
+
+// Headless regression runner. Every ROM runs on a fork-join pool for a
+// fixed number of frames with a fixed random seed and no input; a hash of
+// the framebuffer and registers is taken every checkpoint and compared to
+// the ROM's golden file (<golden dir>/<rom name>.golden), or written to
+// it with --record. With --audio each ROM's sound is also written to
+// <audio dir>/<rom name>.wav.
+//
+// Usage: ConformanceRunner [--frames N] [--checkpoint N] [--cycles N]
+//            [--seed N] [--threads N] [--golden DIR] [--audio DIR]
+//            [--record] ROM|DIR...
+public class ConformanceRunner {
+
+    enum Status {
+        PASS, FAIL, MISSING, RECORDED, ERROR
+    }
+
+    static class Result {
+
+        final String rom;
+        Status status;
+        String detail = "";
+        long frames;
+        long instructions;
+        long nanos;
+
+        Result(String rom) {
+            this.rom = rom;
+        }
+    }
+
+    private int frames = 600;
+    private int checkpoint = 60;
+    private int cycles = 1000;
+    private long seed = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path goldenDir = null;
+    private Path audioDir = null;
+    private boolean record = false;
+    private final List<Path> roms = new ArrayList<Path>();
+
+    public static void main(String[] args) throws Exception {
+        ConformanceRunner runner = new ConformanceRunner();
+        try {
+            runner.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ConformanceRunner [--frames N] [--checkpoint N] [--cycles N]"
+                    + " [--seed N] [--threads N] [--golden DIR] [--audio DIR] [--record] ROM|DIR...");
+            System.exit(2);
+        }
+        System.exit(runner.runAll() ? 0 : 1);
+    }
+
+    void parse(String[] args) throws IOException {
+        for (int a = 0; a < args.length; a++) {
+            String arg = args[a];
+            if (arg.equals("--record")) {
+                record = true;
+            } else if (arg.startsWith("--")) {
+                if (a + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++a];
+                if (arg.equals("--frames")) {
+                    frames = Integer.parseInt(value);
+                } else if (arg.equals("--checkpoint")) {
+                    checkpoint = Integer.parseInt(value);
+                } else if (arg.equals("--cycles")) {
+                    cycles = Integer.parseInt(value);
+                } else if (arg.equals("--seed")) {
+                    seed = Long.parseLong(value);
+                } else if (arg.equals("--threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (arg.equals("--golden")) {
+                    goldenDir = Paths.get(value);
+                } else if (arg.equals("--audio")) {
+                    audioDir = Paths.get(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else {
+                addRoms(Paths.get(arg));
+            }
+        }
+        if (roms.isEmpty()) {
+            throw new IllegalArgumentException("No ROMs given");
+        }
+        if (frames < 1 || checkpoint < 1 || cycles < 1 || threads < 1) {
+            throw new IllegalArgumentException("Budgets and thread count must be positive");
+        }
+    }
+
+    private void addRoms(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            roms.add(path);
+            return;
+        }
+        // skips what does not fit in memory (traces, snapshots) and the
+        // runner's own output, in case it is written next to the ROMs
+        List<Path> found = new ArrayList<Path>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(path);
+        try {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                if (Files.isRegularFile(p) && Files.size(p) <= RomImage.MAX_SIZE
+                        && !name.endsWith(".golden") && !name.endsWith(".wav")) {
+                    found.add(p);
+                }
+            }
+        } finally {
+            files.close();
+        }
+        Collections.sort(found);
+        roms.addAll(found);
+    }
+
+    boolean runAll() throws Exception {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        try {
+            for (final Path rom : roms) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return runRom(rom);
+                    }
+                }));
+            }
+
+            boolean ok = true;
+            long instructions = 0;
+            int[] counts = new int[Status.values().length];
+            for (Future<Result> future : futures) {
+                Result r = future.get();
+                counts[r.status.ordinal()]++;
+                instructions += r.instructions;
+                ok &= r.status == Status.PASS || r.status == Status.RECORDED;
+                System.out.println(String.format("%-8s %-40s %6d frames %8.2f MIPS  %s",
+                        r.status, r.rom, r.frames,
+                        r.nanos == 0 ? 0.0 : r.instructions * 1e3 / r.nanos, r.detail));
+            }
+
+            long wall = System.nanoTime() - start;
+            StringBuilder summary = new StringBuilder();
+            for (Status status : Status.values()) {
+                if (counts[status.ordinal()] > 0) {
+                    summary.append(status).append(' ').append(counts[status.ordinal()]).append("  ");
+                }
+            }
+            System.out.println(String.format("%d ROMs on %d threads in %.2f s, %.2f MIPS overall  %s",
+                    roms.size(), threads, wall / 1e9, instructions * 1e3 / wall, summary.toString().trim()));
+            return ok;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    Result runRom(Path rom) {
+        Result result = new Result(rom.getFileName().toString());
+        List<String> lines = new ArrayList<String>();
+        lines.add(header());
+
+        long start = System.nanoTime();
+        try {
+            EmulatorCore core = new EmulatorCore();
+            core.loadRom(rom.toString());
+            core.setRandomSeed(seed);
+            core.getScheduler().setCyclesPerFrame(cycles);
+            AudioEngine audio = null;
+            if (audioDir != null) {
+                audio = new AudioEngine(new WaveFileSink(audioDir.resolve(rom.getFileName() + ".wav")));
+                core.setAudioEngine(audio);
+            }
+
+            try {
+                for (int f = checkpoint; f <= frames; f += checkpoint) {
+                    core.getScheduler().runFrames(f - core.getFrameCount());
+                    lines.add(f + " " + Long.toHexString(core.stateHash()));
+                }
+            } finally {
+                if (audio != null) {
+                    audio.close();
+                }
+            }
+            result.frames = core.getFrameCount();
+            result.instructions = core.getInstructionCount();
+        } catch (Exception e) {
+            result.nanos = System.nanoTime() - start;
+            result.status = Status.ERROR;
+            result.detail = e.toString();
+            return result;
+        }
+        result.nanos = System.nanoTime() - start;
+
+        try {
+            compare(rom, lines, result);
+        } catch (IOException e) {
+            result.status = Status.ERROR;
+            result.detail = e.toString();
+        }
+        return result;
+    }
+
+    private String header() {
+        return "# frames=" + frames + " checkpoint=" + checkpoint
+                + " cycles=" + cycles + " seed=" + seed;
+    }
+
+    private void compare(Path rom, List<String> lines, Result result) throws IOException {
+        Path golden = (goldenDir != null ? goldenDir : rom.toAbsolutePath().getParent())
+                .resolve(rom.getFileName() + ".golden");
+
+        if (record) {
+            BufferedWriter out = Files.newBufferedWriter(golden, StandardCharsets.UTF_8);
+            try {
+                for (String line : lines) {
+                    out.write(line);
+                    out.newLine();
+                }
+            } finally {
+                out.close();
+            }
+            result.status = Status.RECORDED;
+            return;
+        }
+
+        if (!Files.exists(golden)) {
+            result.status = Status.MISSING;
+            result.detail = "no " + golden.getFileName();
+            return;
+        }
+
+        List<String> expected = new ArrayList<String>();
+        BufferedReader in = Files.newBufferedReader(golden, StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                expected.add(line.trim());
+            }
+        } finally {
+            in.close();
+        }
+
+        if (expected.isEmpty() || !expected.get(0).equals(lines.get(0))) {
+            result.status = Status.ERROR;
+            result.detail = "golden recorded with other settings: "
+                    + (expected.isEmpty() ? "empty file" : expected.get(0));
+            return;
+        }
+        for (int l = 1; l < lines.size(); l++) {
+            if (l >= expected.size() || !expected.get(l).equals(lines.get(l))) {
+                result.status = Status.FAIL;
+                result.detail = "first mismatch at frame " + lines.get(l).split(" ")[0];
+                return;
+            }
+        }
+        result.status = Status.PASS;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.app;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+
+import com.classicomp.chip8.emu.EmulatorCore;
+import com.classicomp.chip8.emu.RomImage;
+import com.classicomp.chip8.emu.VideoAdapter;
+
+// Command line entry point, the jar's Main-Class. Runs a ROM headless for
+// a budget of frames or instructions and prints the result, or opens the
+// window with the ROM running. Nothing from AWT is referenced on the
+// headless path, so those classes are only loaded for --output window.
+//
+// Output modes: hash prints EmulatorCore.stateHash(), screen prints the
+// display as text, none prints nothing and window opens Chip8App.
+// --timing reports on stderr how long the JVM took to reach main and
+// main to reach the first instruction, then the run itself.
+//
+// Headless runs have no keypad. A run bounded only by --instructions
+// stops, with a note on stderr, when the ROM waits on FX0A, since its
+// instruction count would never advance again.
+//
+// Usage: Launcher ROM [--frames N] [--instructions N] [--cycles N]
+//            [--seed N] [--jit] [--output hash|screen|none|window]
+//            [--timing]
+public class Launcher {
+
+    private String rom = null;
+    private long frames = -1;
+    private long instructions = -1;
+    private int cycles = 1000;
+    private long seed = 0;
+    private boolean jit = false;
+    private String output = "hash";
+    private boolean timing = false;
+
+    public static void main(String[] args) throws Exception {
+        long mainNanos = System.nanoTime();
+        long mainMillis = System.currentTimeMillis();
+        Launcher launcher = new Launcher();
+        try {
+            launcher.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Launcher ROM [--frames N] [--instructions N] [--cycles N]"
+                    + " [--seed N] [--jit] [--output hash|screen|none|window] [--timing]");
+            System.exit(2);
+        }
+        if (launcher.output.equals("window")) {
+            Chip8App.open(launcher.rom);
+            return;
+        }
+        launcher.runHeadless(mainNanos, mainMillis);
+    }
+
+    void parse(String[] args) {
+        for (int a = 0; a < args.length; a++) {
+            String arg = args[a];
+            if (arg.equals("--jit")) {
+                jit = true;
+            } else if (arg.equals("--timing")) {
+                timing = true;
+            } else if (arg.startsWith("--")) {
+                if (a + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++a];
+                if (arg.equals("--frames")) {
+                    frames = Long.parseLong(value);
+                } else if (arg.equals("--instructions")) {
+                    instructions = Long.parseLong(value);
+                } else if (arg.equals("--cycles")) {
+                    cycles = Integer.parseInt(value);
+                } else if (arg.equals("--seed")) {
+                    seed = Long.parseLong(value);
+                } else if (arg.equals("--output")) {
+                    output = value;
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else if (rom == null) {
+                rom = arg;
+            } else {
+                throw new IllegalArgumentException("Only one ROM can be run");
+            }
+        }
+        if (rom == null) {
+            throw new IllegalArgumentException("No ROM given");
+        }
+        if (!output.equals("hash") && !output.equals("screen") && !output.equals("none")
+                && !output.equals("window")) {
+            throw new IllegalArgumentException("Unknown output " + output);
+        }
+        // without a budget, run the ten seconds ConformanceRunner runs
+        if (frames < 0) {
+            frames = instructions < 0 ? 600 : Long.MAX_VALUE;
+        }
+        if (instructions < 0) {
+            instructions = Long.MAX_VALUE;
+        }
+        if (cycles < 1) {
+            throw new IllegalArgumentException("Cycles per frame must be positive");
+        }
+    }
+
+    private void runHeadless(long mainNanos, long mainMillis) throws Exception {
+        EmulatorCore core = new EmulatorCore();
+        core.setJitEnabled(jit);
+        core.loadRom(RomImage.read(Paths.get(rom)));
+        core.setRandomSeed(seed);
+
+        long first = System.nanoTime();
+        long firstMillis = System.currentTimeMillis();
+        while (core.getFrameCount() < frames && core.getInstructionCount() < instructions
+                && !core.isHalted()) {
+            int budget = (int) Math.min(cycles, instructions - core.getInstructionCount());
+            core.cycles(budget);
+            if (core.isWaitingForKey() && frames == Long.MAX_VALUE) {
+                System.err.println("Waiting for a key at frame " + core.getFrameCount()
+                        + " after " + core.getInstructionCount() + " instructions, stopped");
+                break;
+            }
+            if (budget < cycles) {
+                // the instruction budget ran out within the frame
+                break;
+            }
+            core.endFrame();
+        }
+        long end = System.nanoTime();
+
+        if (output.equals("hash")) {
+            System.out.println(Long.toHexString(core.stateHash()));
+        } else if (output.equals("screen")) {
+            printScreen(core.getVideoAdapter());
+        }
+
+        if (timing) {
+            // read after the run, the management classes take a while to load
+            long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.err.println(String.format("JVM start to main %d ms, main to first instruction %.1f ms,"
+                    + " first instruction %d ms after JVM start",
+                    mainMillis - jvmStart, (first - mainNanos) / 1e6, firstMillis - jvmStart));
+            System.err.println(String.format("%d frames, %d instructions in %.1f ms, %.2f MIPS",
+                    core.getFrameCount(), core.getInstructionCount(), (end - first) / 1e6,
+                    end == first ? 0.0 : core.getInstructionCount() * 1e3 / (end - first)));
+        }
+    }
+
+    private static void printScreen(VideoAdapter video) {
+        StringBuilder out = new StringBuilder(33 * 65);
+        for (int y = 0; y < 32; y++) {
+            long row = video.getRow(y);
+            for (int x = 0; x < 64; x++) {
+                out.append((row << x) < 0 ? '#' : '.');
+            }
+            out.append('\n');
+        }
+        System.out.print(out);
+    }
+}
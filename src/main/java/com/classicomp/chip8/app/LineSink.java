@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.app;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import com.classicomp.chip8.emu.AudioEngine;
+import com.classicomp.chip8.emu.SampleSink;
+
+// Plays the samples on the default output line. The line buffer holds a
+// few frames, which bounds the latency, and a write only takes what fits
+// in it right now, so SourceDataLine.write never blocks.
+public class LineSink implements SampleSink {
+
+    private static final int BUFFER_FRAMES = 4;
+
+    private final SourceDataLine line;
+
+    private LineSink(SourceDataLine line) {
+        this.line = line;
+    }
+
+    // Opens and starts the line, or returns null when there is no audio
+    // output to open
+    public static LineSink open() {
+        AudioFormat format = new AudioFormat(AudioEngine.SAMPLE_RATE, 16, 1, true, false);
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(format);
+            line.open(format, BUFFER_FRAMES * AudioEngine.FRAME_BYTES);
+            line.start();
+            return new LineSink(line);
+        } catch (LineUnavailableException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // no mixer supports the format, as on headless hosts
+            return null;
+        }
+    }
+
+    @Override
+    public int write(byte[] samples, int offset, int length) {
+        int n = Math.min(length, line.available()) & ~1;
+        return n > 0 ? line.write(samples, offset, n) : 0;
+    }
+
+    @Override
+    public void close() {
+        line.stop();
+        line.close();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.app;
+
+import java.awt.Color;
+import java.awt.Container;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import com.classicomp.chip8.emu.VideoAdapter;
+
+// Renders the emulator framebuffer through a TYPE_INT_RGB image already at
+// the display scale. Changed rows are written straight into the image's
+// int[] raster: each row is expanded once into a scanline, which is then
+// copied scale times. The band of rows that changed is then drawn with a
+// single unscaled drawImage, the plain copy Java2D does fastest, instead
+// of one fillRect per run of lit pixels.
+//
+// An image whose raster is accessed directly is never cached by Java2D,
+// so a 64 x 32 image scaled by drawImage would be scaled in software on
+// every frame, which costs more than expanding the few rows that changed.
+//
+// Only the UI thread uses a RasterDisplay; frames come in through a
+// FrameExchange.
+public class RasterDisplay {
+
+    public static final int DEFAULT_SCALE = 8;
+    public static final int DEFAULT_BACKGROUND = 0xaaaa00;
+    public static final int DEFAULT_FOREGROUND = 0x000000;
+
+    // Room around the screen for the outline
+    private static final int MARGIN = 4;
+
+    private final Container container;
+    private final int scale;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int[] scanline;
+    private final long[] shown = new long[32];
+
+    // Rows written by the last update and not painted yet
+    private int paintFrom = 0;
+    private int paintTo = 0;
+
+    private volatile int background;
+    private volatile int foreground;
+    private volatile Color backgroundColor;
+    private volatile Color foregroundColor;
+    private volatile boolean repaintAll = true;
+
+    public RasterDisplay(Container container) {
+        this(container, DEFAULT_SCALE, DEFAULT_BACKGROUND, DEFAULT_FOREGROUND);
+    }
+
+    // Colors are 0xRRGGBB. container may be null when the display is only
+    // painted explicitly.
+    public RasterDisplay(Container container, int scale, int background, int foreground) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale must be positive");
+        }
+        this.container = container;
+        this.scale = scale;
+        setPalette(background, foreground);
+
+        image = new BufferedImage(64 * scale, 32 * scale, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        scanline = new int[64 * scale];
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    // Size of the screen with its outline, in component pixels
+    public int getWidth() {
+        return 64 * scale + 2 * MARGIN;
+    }
+
+    public int getHeight() {
+        return 32 * scale + 2 * MARGIN;
+    }
+
+    // Takes effect on the next frame
+    public void setPalette(int background, int foreground) {
+        this.background = background;
+        this.foreground = foreground;
+        backgroundColor = new Color(background);
+        foregroundColor = new Color(foreground);
+        repaintAll = true;
+    }
+
+    // Rewrites every row on the next update, not only the changed ones
+    public void invalidate() {
+        repaintAll = true;
+    }
+
+    // Copies the rows that differ from the last update into the raster
+    public void update(long[] rows) {
+        int dirty = 0;
+        for (int y = 0; y < 32; y++) {
+            if (rows[y] != shown[y]) {
+                shown[y] = rows[y];
+                dirty |= 1 << y;
+            }
+        }
+        if (repaintAll) {
+            repaintAll = false;
+            dirty = VideoAdapter.ALL_ROWS;
+        }
+        if (dirty == 0) {
+            return;
+        }
+        int first = Integer.numberOfTrailingZeros(dirty);
+        int last = 31 - Integer.numberOfLeadingZeros(dirty);
+        if (paintFrom < paintTo) {
+            first = Math.min(first, paintFrom);
+            last = Math.max(last, paintTo - 1);
+        }
+        paintFrom = first;
+        paintTo = last + 1;
+
+        int off = background;
+        int flip = foreground ^ background;
+        int width = 64 * scale;
+        int[] line = scanline;
+        for (int row = 0; dirty != 0; row++, dirty >>>= 1) {
+            if ((dirty & 1) == 0) {
+                continue;
+            }
+            long bits = shown[row];
+            for (int x = 0; x < width; x += scale) {
+                int color = off ^ ((int) (bits >> 63) & flip);
+                for (int k = 0; k < scale; k++) {
+                    line[x + k] = color;
+                }
+                bits <<= 1;
+            }
+            int base = row * scale * width;
+            for (int k = 0; k < scale; k++) {
+                System.arraycopy(line, 0, pixels, base + k * width, width);
+            }
+        }
+    }
+
+    // Draws the last frame at the top left of the component's insets, as
+    // for a repaint after the window was uncovered
+    public void paint(Graphics g) {
+        Insets insets = container.getInsets();
+        paint(g, insets.left, insets.top);
+    }
+
+    public void paint(Graphics g, int x, int y) {
+        g.setColor(backgroundColor);
+        g.drawRect(x, y, getWidth() - 1, getHeight() - 1);
+        g.drawRect(x + 1, y + 1, getWidth() - 3, getHeight() - 3);
+        g.setColor(foregroundColor);
+        g.drawRect(x + 2, y + 2, getWidth() - 5, getHeight() - 5);
+        g.drawImage(image, x + MARGIN, y + MARGIN, null);
+        paintFrom = paintTo = 0;
+    }
+
+    // Draws only the band of rows changed since the last paint
+    public void paintRows(Graphics g, int x, int y) {
+        if (paintFrom >= paintTo) {
+            return;
+        }
+        int top = paintFrom * scale;
+        int bottom = paintTo * scale;
+        x += MARGIN;
+        y += MARGIN;
+        g.drawImage(image, x, y + top, x + 64 * scale, y + bottom,
+                0, top, 64 * scale, bottom, null);
+        paintFrom = paintTo = 0;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.IOException;
+
+// Turns the sound timer into a square wave tone. At the end of every
+// frame the core hands the engine whether the timer was running, and the
+// engine offers the sink one frame of samples cut from a buffer computed
+// once: the tone, continuing from where the last frame stopped, or
+// silence. Nothing is allocated per frame and the sink is never waited
+// on, so audio cannot hold up execution; above real time most frames
+// simply find the sink full.
+public class AudioEngine {
+
+    public static final int SAMPLE_RATE = 44100;
+    public static final int SAMPLES_PER_FRAME = SAMPLE_RATE / FrameScheduler.FRAME_RATE;
+    public static final int FRAME_BYTES = SAMPLES_PER_FRAME * 2;
+
+    // 441 Hz divides the sample rate, so a period is a whole 100 samples
+    public static final int TONE_FREQUENCY = 441;
+    private static final int PERIOD = SAMPLE_RATE / TONE_FREQUENCY;
+    private static final short AMPLITUDE = 0x1800;
+
+    private final SampleSink sink;
+    private final byte[] tone;
+    private final byte[] silence = new byte[FRAME_BYTES];
+    private int phase = 0;
+    private volatile boolean muted = false;
+
+    private long frames = 0;
+    private long toneFrames = 0;
+    private long droppedBytes = 0;
+
+    public AudioEngine(SampleSink sink) {
+        this.sink = sink;
+        // one frame starting at any point of the period
+        tone = new byte[FRAME_BYTES + PERIOD * 2];
+        for (int s = 0; s < tone.length / 2; s++) {
+            short sample = s % PERIOD < PERIOD / 2 ? AMPLITUDE : (short) -AMPLITUDE;
+            tone[2 * s] = (byte) sample;
+            tone[2 * s + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    void frameEnded(boolean sounding) {
+        int written;
+        if (sounding && !muted) {
+            written = sink.write(tone, phase * 2, FRAME_BYTES);
+            phase = (phase + SAMPLES_PER_FRAME) % PERIOD;
+            toneFrames++;
+        } else {
+            // a new tone starts at the beginning of a period
+            written = sink.write(silence, 0, FRAME_BYTES);
+            phase = 0;
+        }
+        droppedBytes += FRAME_BYTES - written;
+        frames++;
+    }
+
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    public boolean isMuted() {
+        return muted;
+    }
+
+    public SampleSink getSink() {
+        return sink;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    // Frames in which the sound timer was running
+    public long getToneFrames() {
+        return toneFrames;
+    }
+
+    // Bytes the sink had no room for
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public void close() throws IOException {
+        sink.close();
+    }
+}
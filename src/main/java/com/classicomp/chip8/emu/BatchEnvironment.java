@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+// N machines running the same ROM in lockstep, for training agents. Each
+// step takes one key mask per machine, runs every machine the same number
+// of frames, and returns all the framebuffers in one packed array.
+//
+// Inputs and results are kept as arrays indexed by machine (the key masks,
+// frame counts, halted flags and the screens, 32 longs per machine) and
+// are reused from step to step. The machines are split into contiguous
+// slices, one per thread; the calling thread runs the first slice and
+// persistent daemon threads run the others, woken with unpark, so a step
+// allocates nothing.
+//
+// reset(m) can be called at any time; machine m goes back to its initial
+// state at the start of the next step, on the thread that owns it, while
+// the rest of the batch runs as usual.
+public class BatchEnvironment {
+
+    private final int size;
+    private final EmulatorCore[] machines;
+    private final long seed;
+
+    private final long[] screens;
+    private final long[] frameCounts;
+    private final boolean[] halted;
+    private final AtomicIntegerArray resets;
+    private final int[] resetCounts;
+    private final byte[] initialState;
+    private final ByteBuffer[] resetStates;
+
+    private final Thread[] workers;
+    private final int[] sliceStart;
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile Thread caller;
+    private volatile long generation = 0;
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+
+    private int[] stepKeys;
+    private int stepFrames;
+
+    public BatchEnvironment(byte[] rom, int size, int threads, long seed) throws IOException {
+        if (size < 1 || threads < 1) {
+            throw new IllegalArgumentException("size and threads must be positive");
+        }
+        this.size = size;
+        this.seed = seed;
+        machines = new EmulatorCore[size];
+        screens = new long[size * 32];
+        frameCounts = new long[size];
+        halted = new boolean[size];
+        resets = new AtomicIntegerArray(size);
+        resetCounts = new int[size];
+
+        EmulatorCore first = new EmulatorCore();
+        first.loadRom(new ByteArrayInputStream(rom));
+        ByteBuffer state = ByteBuffer.allocate(SaveState.STATE_SIZE);
+        SaveState.write(first, state);
+        initialState = state.array();
+
+        for (int m = 0; m < size; m++) {
+            machines[m] = m == 0 ? first : new EmulatorCore();
+            if (m > 0) {
+                SaveState.read(machines[m], ByteBuffer.wrap(initialState));
+            }
+            machines[m].setRandomSeed(seed + m);
+        }
+
+        threads = Math.min(threads, size);
+        sliceStart = new int[threads + 1];
+        for (int t = 0; t <= threads; t++) {
+            sliceStart[t] = (int) ((long) size * t / threads);
+        }
+        resetStates = new ByteBuffer[threads];
+        for (int t = 0; t < threads; t++) {
+            resetStates[t] = ByteBuffer.wrap(initialState).asReadOnlyBuffer();
+        }
+        workers = new Thread[threads];
+        for (int t = 1; t < threads; t++) {
+            final int slice = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(slice);
+                }
+            }, "chip8-batch-" + t);
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The machine itself, to change its settings between steps
+    public EmulatorCore getMachine(int m) {
+        return machines[m];
+    }
+
+    // Runs frames frames on every machine with keys[m] held on machine m,
+    // and returns the screens: the 32 rows of machine m start at 32 * m.
+    // The array is the same one on every call.
+    public long[] step(int[] keys, int frames) {
+        if (keys.length < size) {
+            throw new IllegalArgumentException("Need " + size + " key masks");
+        }
+        if (closed) {
+            throw new IllegalStateException("Batch closed");
+        }
+        stepKeys = keys;
+        stepFrames = frames;
+        caller = Thread.currentThread();
+        running.set(workers.length);
+        generation++;
+        for (int t = 1; t < workers.length; t++) {
+            LockSupport.unpark(workers[t]);
+        }
+
+        runSlice(0);
+        finished();
+        while (running.get() != 0) {
+            LockSupport.park(this);
+        }
+
+        Throwable t = failure;
+        if (t != null) {
+            failure = null;
+            throw new IllegalStateException("Machine failed", t);
+        }
+        return screens;
+    }
+
+    public long[] getScreens() {
+        return screens;
+    }
+
+    public long[] getFrameCounts() {
+        return frameCounts;
+    }
+
+    // True for machines stopped on a 0000 instruction
+    public boolean[] getHalted() {
+        return halted;
+    }
+
+    public void reset(int m) {
+        resets.set(m, 1);
+    }
+
+    public void close() {
+        closed = true;
+        for (int t = 1; t < workers.length; t++) {
+            LockSupport.unpark(workers[t]);
+        }
+    }
+
+    private void work(int slice) {
+        long seen = 0;
+        while (!closed) {
+            if (generation == seen) {
+                LockSupport.park(this);
+                continue;
+            }
+            seen = generation;
+            runSlice(slice);
+            finished();
+        }
+    }
+
+    private void finished() {
+        if (running.decrementAndGet() == 0) {
+            LockSupport.unpark(caller);
+        }
+    }
+
+    private void runSlice(int slice) {
+        int[] keys = stepKeys;
+        int frames = stepFrames;
+        ByteBuffer state = resetStates[slice];
+        try {
+            for (int m = sliceStart[slice]; m < sliceStart[slice + 1]; m++) {
+                EmulatorCore core = machines[m];
+                if (resets.get(m) != 0) {
+                    resets.set(m, 0);
+                    state.clear();
+                    SaveState.read(core, state);
+                    core.getKeyboard().setKeyMask(0);
+                    core.getKeyboard().takeTypedKey();
+                    core.setRandomSeed(seed + m + (long) size * ++resetCounts[m]);
+                }
+
+                core.getKeyboard().setKeyMask(keys[m]);
+                core.latchInput(false);
+                core.getScheduler().runFrames(frames);
+
+                VideoAdapter video = core.getVideoAdapter();
+                int base = m * 32;
+                for (int y = 0; y < 32; y++) {
+                    screens[base + y] = video.getRow(y);
+                }
+                frameCounts[m] = core.getFrameCount();
+                halted[m] = core.isHalted();
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+}
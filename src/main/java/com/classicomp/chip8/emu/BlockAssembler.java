@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.classicomp.chip8.emu.EmulatorCore.*;
+
+// Writes the class file for one compiled block: a subclass of
+// BlockCompiler.Code whose run(EmulatorCore) is the block's instructions
+// as straight-line bytecode, with registers and operands as constants.
+// Class files are version 49, which the JVM verifies without stack map
+// frames, so branches need no frame bookkeeping.
+final class BlockAssembler {
+
+    private static final String CORE = "com/classicomp/chip8/emu/EmulatorCore";
+    private static final String VIDEO = "com/classicomp/chip8/emu/VideoAdapter";
+    private static final String CODE = "com/classicomp/chip8/emu/BlockCompiler$Code";
+
+    // locals of run(): this, the core, v and memory
+    private static final int CORE_LOCAL = 1;
+    private static final int V_LOCAL = 2;
+    private static final int MEMORY_LOCAL = 3;
+
+    private static final int ALOAD = 0x19;
+    private static final int ASTORE = 0x3a;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int BALOAD = 0x33;
+    private static final int SALOAD = 0x35;
+    private static final int BASTORE = 0x54;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int ISHL = 0x78;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int IFGE = 0x9c;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    // Constant pool, entries keyed by their own encoding
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> entries = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    private final DataOutputStream code = new DataOutputStream(codeBytes);
+
+    // Returns whether compile() accepts the handler
+    static boolean isCompilable(int handler) {
+        switch (handler) {
+            case OP_NOP:
+            case OP_CLS:
+            case OP_LD_KK:
+            case OP_ADD_KK:
+            case OP_LD_XY:
+            case OP_OR:
+            case OP_AND:
+            case OP_XOR:
+            case OP_ADD_XY:
+            case OP_SUB:
+            case OP_SHR:
+            case OP_SUBN:
+            case OP_SHL:
+            case OP_LD_I:
+            case OP_RND:
+            case OP_LD_VX_DT:
+            case OP_LD_DT:
+            case OP_LD_ST:
+            case OP_ADD_I:
+            case OP_LD_F:
+            case OP_BCD:
+            case OP_STORE:
+            case OP_LOAD:
+                return true;
+        }
+        return false;
+    }
+
+    // Class file for the decoded instructions in entries, all of which
+    // have to be compilable
+    static byte[] assemble(String name, int[] entries) {
+        try {
+            return new BlockAssembler().write(name, entries);
+        } catch (IOException e) {
+            // in-memory streams do not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] write(String name, int[] block) throws IOException {
+        int thisClass = classRef(name);
+        int superClass = classRef(CODE);
+        int superInit = methodRef(CODE, "<init>", "()V");
+
+        // <init>: super()
+        code.writeByte(ALOAD_0);
+        code.writeByte(INVOKESPECIAL);
+        code.writeShort(superInit);
+        code.writeByte(RETURN);
+        byte[] init = takeCode();
+
+        // run(c): v and memory are loaded once into locals
+        code.writeByte(ALOAD);
+        code.writeByte(CORE_LOCAL);
+        field(GETFIELD, "v", "[B");
+        code.writeByte(ASTORE);
+        code.writeByte(V_LOCAL);
+        code.writeByte(ALOAD);
+        code.writeByte(CORE_LOCAL);
+        field(GETFIELD, "memory", "[S");
+        code.writeByte(ASTORE);
+        code.writeByte(MEMORY_LOCAL);
+        for (int entry : block) {
+            instruction(entry);
+        }
+        code.writeByte(RETURN);
+        byte[] run = takeCode();
+
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int runName = utf8("run");
+        int runType = utf8("(L" + CORE + ";)V");
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolCount);
+        pool.flush();
+        poolBytes.writeTo(out);
+        out.writeShort(0x0030); // final, super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+        method(out, 0x0001, initName, initType, codeName, 1, 1, init);
+        method(out, 0x0000, runName, runType, codeName, 6, 4, run);
+        out.writeShort(0); // attributes
+        out.flush();
+        return classBytes.toByteArray();
+    }
+
+    private static void method(DataOutputStream out, int access, int name, int type,
+            int codeName, int maxStack, int maxLocals, byte[] body) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private byte[] takeCode() throws IOException {
+        code.flush();
+        byte[] body = codeBytes.toByteArray();
+        codeBytes.reset();
+        return body;
+    }
+
+    // Same operations as EmulatorCore.execute(), in the same order, so
+    // registers aliasing VF end up with the same values
+    private void instruction(int entry) throws IOException {
+        int x = (entry & 0x0f00) >>> 8;
+        int y = (entry & 0x00f0) >>> 4;
+        int kk = entry & 0x00ff;
+        int nnn = entry & 0x0fff;
+
+        switch (entry >>> 16) {
+            case OP_NOP:
+                break;
+
+            case OP_CLS:
+                core();
+                field(GETFIELD, "video", "L" + VIDEO + ";");
+                code.writeByte(INVOKEVIRTUAL);
+                code.writeShort(methodRef(VIDEO, "clear", "()V"));
+                break;
+
+            case OP_LD_KK:
+                register(x);
+                push(kk);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_ADD_KK:
+                register(x);
+                load(x);
+                push(kk);
+                code.writeByte(IADD);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_LD_XY:
+                register(x);
+                load(y);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_OR:
+                logic(x, y, IOR);
+                break;
+
+            case OP_AND:
+                logic(x, y, IAND);
+                break;
+
+            case OP_XOR:
+                logic(x, y, IXOR);
+                break;
+
+            case OP_ADD_XY:
+                // VF = VX + VY - 0xff, or 0 when negative
+                register(0xf);
+                load(x);
+                load(y);
+                code.writeByte(IADD);
+                push(0xff);
+                code.writeByte(ISUB);
+                code.writeByte(BASTORE);
+                load(0xf);
+                // skips the ifge and VF = 0: aload, bipush, iconst, bastore
+                code.writeByte(IFGE);
+                code.writeShort(3 + 2 + 2 + 1 + 1);
+                register(0xf);
+                code.writeByte(ICONST_0);
+                code.writeByte(BASTORE);
+                register(x);
+                load(x);
+                load(y);
+                code.writeByte(IADD);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_SUB:
+                borrow(x, y);
+                register(x);
+                load(x);
+                load(y);
+                code.writeByte(ISUB);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_SUBN:
+                borrow(y, x);
+                register(x);
+                load(y);
+                load(x);
+                code.writeByte(ISUB);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_SHR:
+                register(0xf);
+                load(x);
+                code.writeByte(ICONST_1);
+                code.writeByte(IAND);
+                code.writeByte(BASTORE);
+                register(x);
+                load(x);
+                code.writeByte(ICONST_1);
+                code.writeByte(IUSHR);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_SHL:
+                register(0xf);
+                load(x);
+                push(0x40);
+                code.writeByte(IAND);
+                code.writeByte(BASTORE);
+                register(x);
+                load(x);
+                code.writeByte(ICONST_1);
+                code.writeByte(ISHL);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_LD_I:
+                core();
+                push(nnn - 0x0200);
+                field(PUTFIELD, "i", "I");
+                break;
+
+            case OP_RND:
+                register(x);
+                core();
+                code.writeByte(INVOKEVIRTUAL);
+                code.writeShort(methodRef(CORE, "nextRandom", "()I"));
+                push(kk);
+                code.writeByte(IAND);
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_LD_VX_DT:
+                register(x);
+                core();
+                field(GETFIELD, "delay", "B");
+                code.writeByte(BASTORE);
+                break;
+
+            case OP_LD_DT:
+                core();
+                load(x);
+                field(PUTFIELD, "delay", "B");
+                break;
+
+            case OP_LD_ST:
+                core();
+                load(x);
+                field(PUTFIELD, "sound", "B");
+                break;
+
+            case OP_ADD_I:
+                core();
+                core();
+                field(GETFIELD, "i", "I");
+                load(x);
+                code.writeByte(IADD);
+                field(PUTFIELD, "i", "I");
+                break;
+
+            case OP_LD_F:
+                core();
+                load(x);
+                push(5);
+                code.writeByte(IMUL);
+                push(0xfff - 80);
+                code.writeByte(IADD);
+                field(PUTFIELD, "i", "I");
+                break;
+
+            case OP_BCD:
+                core();
+                push(x);
+                code.writeByte(INVOKEVIRTUAL);
+                code.writeShort(methodRef(CORE, "storeBcd", "(I)V"));
+                break;
+
+            case OP_STORE:
+                core();
+                push(x);
+                code.writeByte(INVOKEVIRTUAL);
+                code.writeShort(methodRef(CORE, "storeRegisters", "(I)V"));
+                break;
+
+            case OP_LOAD:
+                // V0...VX from M(I) on, unrolled
+                for (int j = 0; j <= x; j++) {
+                    register(j);
+                    code.writeByte(ALOAD);
+                    code.writeByte(MEMORY_LOCAL);
+                    core();
+                    field(GETFIELD, "i", "I");
+                    if (j > 0) {
+                        push(j);
+                        code.writeByte(IADD);
+                    }
+                    code.writeByte(SALOAD);
+                    code.writeByte(BASTORE);
+                }
+                core();
+                core();
+                field(GETFIELD, "i", "I");
+                push(x + 1);
+                code.writeByte(IADD);
+                field(PUTFIELD, "i", "I");
+                break;
+
+            default:
+                throw new IllegalArgumentException("Not compilable: " + Integer.toHexString(entry));
+        }
+    }
+
+    // VX = VX op VY
+    private void logic(int x, int y, int op) throws IOException {
+        register(x);
+        load(x);
+        load(y);
+        code.writeByte(op);
+        code.writeByte(BASTORE);
+    }
+
+    // VF = VA >= VB ? 1 : 0
+    private void borrow(int a, int b) throws IOException {
+        register(0xf);
+        load(a);
+        load(b);
+        code.writeByte(IF_ICMPLT);
+        code.writeShort(3 + 1 + 3);
+        code.writeByte(ICONST_1);
+        code.writeByte(GOTO);
+        code.writeShort(3 + 1);
+        code.writeByte(ICONST_0);
+        code.writeByte(BASTORE);
+    }
+
+    private void core() throws IOException {
+        code.writeByte(ALOAD);
+        code.writeByte(CORE_LOCAL);
+    }
+
+    // Pushes v and the index of VX, ready for a store
+    private void register(int x) throws IOException {
+        code.writeByte(ALOAD);
+        code.writeByte(V_LOCAL);
+        push(x);
+    }
+
+    // Pushes the value of VX
+    private void load(int x) throws IOException {
+        register(x);
+        code.writeByte(BALOAD);
+    }
+
+    private void push(int value) throws IOException {
+        if (value >= -128 && value <= 127) {
+            code.writeByte(BIPUSH);
+            code.writeByte(value);
+        } else {
+            code.writeByte(SIPUSH);
+            code.writeShort(value);
+        }
+    }
+
+    private void field(int op, String name, String type) throws IOException {
+        code.writeByte(op);
+        code.writeShort(memberRef(9, CORE, name, type));
+    }
+
+    private int methodRef(String owner, String name, String type) throws IOException {
+        return memberRef(10, owner, name, type);
+    }
+
+    private int memberRef(int tag, String owner, String name, String type) throws IOException {
+        String key = tag + " " + owner + "." + name + type;
+        Integer index = entries.get(key);
+        if (index == null) {
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, type);
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+            index = add(key);
+        }
+        return index;
+    }
+
+    private int nameAndType(String name, String type) throws IOException {
+        String key = "12 " + name + type;
+        Integer index = entries.get(key);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+            index = add(key);
+        }
+        return index;
+    }
+
+    private int classRef(String name) throws IOException {
+        String key = "7 " + name;
+        Integer index = entries.get(key);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            pool.writeByte(7);
+            pool.writeShort(nameIndex);
+            index = add(key);
+        }
+        return index;
+    }
+
+    private int utf8(String value) throws IOException {
+        String key = "1 " + value;
+        Integer index = entries.get(key);
+        if (index == null) {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+            index = add(key);
+        }
+        return index;
+    }
+
+    private int add(String key) {
+        int index = poolCount++;
+        entries.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Dynamic recompiler for hot straight-line code.
+//
+// A block starts at an address the interpreter has executed HOT_THRESHOLD
+// times and runs until the next instruction that may transfer control
+// (jumps, calls, returns, skips), draw (DXYN) or wait for input. Stores to
+// memory (FX33, FX55) are compiled as the last instruction of a block, so
+// code they overwrite is always looked up again. BlockAssembler turns the
+// block into a class whose run() is the instructions as straight-line
+// bytecode, so entering a block costs one call and the JVM compiles the
+// rest like any other method; pc is only written once per block.
+//
+// Generated code depends only on the opcodes, so classes are shared by
+// every core running the same code. Classes are defined with
+// MethodHandles.Lookup.defineClass, which needs Java 9; on Java 8 the
+// compiler is not available and cores stay on the interpreter.
+final class BlockCompiler {
+
+    static final int HOT_THRESHOLD = 16;
+    static final int MAX_BLOCK_LENGTH = 32;
+    // Blocks this short run faster interpreted than through a call
+    static final int MIN_BLOCK_LENGTH = 3;
+
+    // When less than 1 in MIN_COMPILED_SHARE instructions of a cycles()
+    // call ran in blocks, the lookups cost more than the blocks saved and
+    // the core interprets the next REST_CALLS calls without them
+    static final int MIN_COMPILED_SHARE = 4;
+    static final int REST_CALLS = 15;
+
+    // Distinct blocks compiled per JVM; generated classes are never
+    // unloaded, so past this blocks are left to the interpreter
+    static final int MAX_CLASSES = 8192;
+
+    // Stands in the block table for an address that has been found not to
+    // start a compilable block. It never fits a budget, so the run loops
+    // interpret such code after a single lookup.
+    static final Block COLD = new Block(0, Integer.MAX_VALUE, null, (short) 0);
+
+    private static final Method DEFINE_CLASS = defineClassMethod();
+    private static final ConcurrentMap<String, Code> CODE = new ConcurrentHashMap<String, Code>();
+    private static final AtomicInteger CLASSES = new AtomicInteger();
+
+    // Superclass of the generated classes
+    abstract static class Code {
+
+        abstract void run(EmulatorCore c);
+    }
+
+    static final class Block {
+
+        final int start;
+        final int length;
+        final Code code;
+        final short lastOpcode;
+
+        Block(int start, int length, Code code, short lastOpcode) {
+            this.start = start;
+            this.length = length;
+            this.code = code;
+            this.lastOpcode = lastOpcode;
+        }
+
+        void run(EmulatorCore c) {
+            code.run(c);
+            c.pc = start + 2 * length;
+            c.opcode = lastOpcode;
+        }
+    }
+
+    private final EmulatorCore core;
+    // Read directly by the run loop, which only calls warm() on a miss
+    final Block[] blocks;
+    private final int[] heat;
+    // Number of blocks covering each memory byte, so stores to data
+    // addresses do not have to look for blocks to drop
+    private final byte[] coverage;
+    private int rest = 0;
+
+    BlockCompiler(EmulatorCore core) {
+        this.core = core;
+        this.blocks = new Block[core.memory.length];
+        this.heat = new int[core.memory.length];
+        this.coverage = new byte[core.memory.length];
+    }
+
+    // Returns the block starting at pc, compiling it once it gets hot;
+    // null or COLD mean pc has to be interpreted
+    Block blockAt(int pc) {
+        Block block = blocks[pc];
+        return block != null ? block : warm(pc);
+    }
+
+    // Counts an execution of pc while it has no entry in blocks
+    Block warm(int pc) {
+        Block block = null;
+        if (++heat[pc] == HOT_THRESHOLD) {
+            heat[pc] = 0;
+            block = compile(pc);
+            if (block != null) {
+                blocks[pc] = block;
+                cover(block, 1);
+            } else {
+                blocks[pc] = COLD;
+            }
+        }
+        return block;
+    }
+
+    // Whether the next cycles() call should skip the block lookups
+    boolean resting() {
+        if (rest > 0) {
+            rest--;
+            return true;
+        }
+        return false;
+    }
+
+    // Called after a cycles() call that looked blocks up
+    void ran(int executed, int compiled) {
+        if (compiled * MIN_COMPILED_SHARE < executed) {
+            rest = REST_CALLS;
+        }
+    }
+
+    // Drops every block containing the instruction bytes at address
+    void invalidate(int address) {
+        if (coverage[address] != 0) {
+            drop(address);
+        }
+        if (blocks[address] == COLD) {
+            blocks[address] = null;
+        }
+        if (address > 0 && blocks[address - 1] == COLD) {
+            blocks[address - 1] = null;
+        }
+    }
+
+    private void drop(int address) {
+        int from = Math.max(0, address - 2 * MAX_BLOCK_LENGTH + 1);
+        for (int a = from; a <= address; a++) {
+            Block block = blocks[a];
+            if (block != null && block != COLD && a + 2 * block.length > address) {
+                blocks[a] = null;
+                heat[a] = 0;
+                cover(block, -1);
+            }
+        }
+    }
+
+    private void cover(Block block, int delta) {
+        int end = Math.min(block.start + 2 * block.length, coverage.length);
+        for (int a = block.start; a < end; a++) {
+            coverage[a] += delta;
+        }
+    }
+
+    void reset() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(heat, 0);
+        Arrays.fill(coverage, (byte) 0);
+        rest = 0;
+    }
+
+    static boolean isAvailable() {
+        return DEFINE_CLASS != null;
+    }
+
+    private static Method defineClassMethod() {
+        try {
+            return MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private Block compile(int start) {
+        int[] entries = new int[MAX_BLOCK_LENGTH];
+        int length = 0;
+
+        for (int pc = start; length < MAX_BLOCK_LENGTH && pc + 1 < core.memory.length; pc += 2) {
+            int entry = core.decodedAt(pc);
+            int handler = entry >>> 16;
+            if (!BlockAssembler.isCompilable(handler)) {
+                break;
+            }
+            entries[length++] = entry;
+            if (handler == EmulatorCore.OP_BCD || handler == EmulatorCore.OP_STORE) {
+                break;
+            }
+        }
+
+        if (length < MIN_BLOCK_LENGTH) {
+            return null;
+        }
+        entries = Arrays.copyOf(entries, length);
+        Code code = codeFor(entries);
+        if (code == null) {
+            return null;
+        }
+        return new Block(start, length, code, (short) entries[length - 1]);
+    }
+
+    // The shared compiled code for entries, or null when no more classes
+    // can be defined
+    private static Code codeFor(int[] entries) {
+        char[] opcodes = new char[entries.length];
+        for (int a = 0; a < entries.length; a++) {
+            opcodes[a] = (char) entries[a];
+        }
+        String key = new String(opcodes);
+        Code code = CODE.get(key);
+        if (code != null) {
+            return code;
+        }
+        int n = CLASSES.incrementAndGet();
+        if (n > MAX_CLASSES) {
+            CLASSES.decrementAndGet();
+            return null;
+        }
+        String name = "com/classicomp/chip8/emu/CompiledBlock" + n;
+        try {
+            Class<?> type = (Class<?>) DEFINE_CLASS.invoke(MethodHandles.lookup(),
+                    (Object) BlockAssembler.assemble(name, entries));
+            code = (Code) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot define " + name, e);
+        }
+        Code known = CODE.putIfAbsent(key, code);
+        return known != null ? known : code;
+    }
+}
@@ -16,28 +16,69 @@
  */
 package com.classicomp.chip8.emu;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 public class EmulatorCore implements Runnable {
 
-    private byte[] v = new byte[16]; // general purpose registers
-    private int i; // addressing register
-    private int pc = 0; // program counter
-    private int sp = 0; // stack pointer
+    byte[] v = new byte[16]; // general purpose registers
+    int i; // addressing register
+    int pc = 0; // program counter
+    int sp = 0; // stack pointer
     
-    private int[] stack = new int[16];
+    int[] stack = new int[16];
     short memory[] = new short[0xfff];
+
+    // Decoded instruction cache, indexed by pc. Each entry holds the handler
+    // id in its upper half and the raw opcode in the lower one; 0 means the
+    // address still has to be decoded.
+    private final int[] decoded = new int[0xfff];
     
     short reserved[] = new short[80]; // temp store for bcd fonts 0x000 to 0x200
     
-    private short opcode = 0;
-    private byte delay = 0;
-    private byte sound = 0;
+    short opcode = 0;
+    byte delay = 0;
+    byte sound = 0;
 
     VideoAdapter video = new VideoAdapter();
     Keyboard keyboard = new Keyboard();
 
+    private BlockCompiler jit = null;
+
+    private final FrameScheduler scheduler = new FrameScheduler(this);
+    private long frame = 0;
+    private long instructions = 0;
+    private EmulatorMetrics metrics = null;
+    private Profiler profiler = null;
+    private TraceRecorder tracer = null;
+    private final byte[] tracedRegisters = new byte[16];
+    private boolean waitingForKey = false;
+
+    // Set by an FX0A that waits or a jump that closes an idle loop, so the
+    // run loops only test one flag per instruction
+    private boolean suspended = false;
+    private boolean idleSkip = true;
+    private static final int MAX_IDLE_LENGTH = 16;
+    private final int[] idlePath = new int[MAX_IDLE_LENGTH];
+    private final byte[] idleRegisters = new byte[16];
+    private int idleLength = 0;
+
+    private RewindBuffer rewind = null;
+    private AudioEngine audio = null;
+
+    // Keypad state as seen by the program. It is latched from the
+    // keyboard (or a replayed InputLog) only at the start of a frame and
+    // when an FX0A wait resumes, so execution is deterministic.
+    int keyMask = 0;
+    int typedKey = -1;
+    private InputLog recorder = null;
+    private InputLog replay = null;
+
+    // xorshift64* state, private to this instance
+    long random = seedRandom(System.nanoTime() ^ System.identityHashCode(this));
+
     public EmulatorCore() {
         loadFonts();
     }
@@ -47,29 +88,36 @@ public class EmulatorCore implements Runnable {
     }
 
     public void loadRom(String romName) throws IOException {
-        FileInputStream f = new FileInputStream(romName);
-        
-        // reset the machine
-        this.reset();
-        
-        int a = 0;
-        short data;
-        
+        loadRom(RomImage.read(Paths.get(romName)));
+    }
+
+    // Loads a ROM image read from f, as sent by a remote client
+    public void loadRom(InputStream f) throws IOException {
+        loadRom(RomImage.read("stream", f));
+    }
+
+    // Resets the machine with rom in memory, copying the parsed image
+    // over RAM instead of clearing it first
+    public void loadRom(RomImage rom) {
+        resetMachine();
+        System.arraycopy(rom.image, 0, memory, 0, rom.image.length);
+
         // now reverse store bcd fonts to avoid address rewriting
         // programs found on web usualy refer to 0x000 as start
         // and it conflicts with reserved addresses
-        for (int b = 0xfff - 80; b < 0xfff; b++) {
-            memory[b] = reserved[a++];
-        }
+        System.arraycopy(reserved, 0, memory, 0xfff - 80, 80);
+    }
 
-        a = 0;
-        while ((data = (short) f.read()) != -1) {
-            memory[a++] = data;
+    public void reset() {
+        resetMachine();
+
+        // cleanup RAM
+        for (int a = 0; a < 0xfff - 80; a++) {
+            memory[a] = 0x00ff;
         }
-        
     }
 
-    public void reset() {
+    private void resetMachine() {
         // cleanup special registers
         pc = 0;
         sp = 0;
@@ -78,330 +126,1019 @@ public class EmulatorCore implements Runnable {
         opcode = 0;
         delay = 0;
         sound = 0;
+        frame = 0;
+        keyMask = 0;
+        typedKey = -1;
+        waitingForKey = false;
+        suspended = false;
         
         // cleanup general purpose registers
         for (int a = 0; a < 16; a++) {
             v[a] = 0;
         }
-        
-        // cleanup RAM
-        for (int a = 0; a < 0xfff - 80; a++) {
-            memory[a] = 0x00ff;
+
+        Arrays.fill(decoded, 0);
+        if (jit != null) {
+            jit.reset();
         }
-        
+
         video.reset();
     }
     
-    boolean keyPressed(int keyCode) {
-        return keyboard.getPressedKey() == keyCode;
+    boolean keyPressed(int key) {
+        return key >= 0 && key < 16 && (keyMask & (1 << key)) != 0;
     }
 
-    int readKey() {
-        int key;
-        //System.out.println("ReadKey!");
-        try {
-            while ((key = keyboard.getTypedKey()) == -1) {
-                Thread.sleep(1);
+    void latchInput(boolean midFrame) {
+        if (replay != null) {
+            replay.apply(this, frame, midFrame);
+            return;
+        }
+        int mask = keyboard.getKeyMask();
+        int typed = keyboard.takeTypedKey();
+        if (mask != keyMask || typed != -1) {
+            latchInput(mask, typed);
+            if (recorder != null) {
+                recorder.add(frame, midFrame, mask, typed);
             }
-            return key;
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return 1;
     }
 
-    public void setDisplay(Object o) {
-        video.setDisplay(o);
+    void latchInput(int mask, int typed) {
+        keyMask = mask;
+        if (typed != -1) {
+            typedKey = typed;
+        }
     }
 
-    public void setDisplayContainer(Object o) {
-        video.setDisplayContainer(o);
+    // True when input is waiting to be latched by a resumed FX0A
+    public boolean hasPendingInput() {
+        if (replay != null) {
+            return replay.hasMidFrameInput(frame);
+        }
+        return keyboard.hasTypedKey();
+    }
+
+    // Starts logging input into log, which also takes the current random
+    // state and instructions per frame. Call it right after loadRom so the
+    // log can be replayed from the start of the ROM.
+    public void setInputRecorder(InputLog log) {
+        recorder = log;
+        replay = null;
+        if (log != null) {
+            log.setSeed(random);
+            log.setCyclesPerFrame(scheduler.getCyclesPerFrame());
+            keyMask = 0;
+            typedKey = -1;
+        }
+    }
+
+    // Replaces keyboard input with a recorded log, restoring its random
+    // state and instructions per frame. Call it right after loadRom.
+    public void setInputReplay(InputLog log) {
+        replay = log;
+        recorder = null;
+        if (log != null) {
+            random = log.getSeed();
+            scheduler.setCyclesPerFrame(log.getCyclesPerFrame());
+            log.rewindCursor();
+            keyMask = 0;
+            typedKey = -1;
+        }
+    }
+
+    public void setRandomSeed(long seed) {
+        random = seedRandom(seed);
+    }
+
+    // Spreads the seed bits (SplitMix64 finalizer); xorshift needs a
+    // non-zero state
+    private static long seedRandom(long seed) {
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return z != 0 ? z : 0x9E3779B97F4A7C15L;
+    }
+
+    // Next random byte, 0 to 255
+    int nextRandom() {
+        long x = random;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        random = x;
+        return (int) ((x * 0x2545F4914F6CDD1DL) >>> 56);
+    }
+
+    // True when the last cycles() call stopped on an FX0A with no key
+    // typed yet. The instruction is retried on the next call.
+    public boolean isWaitingForKey() {
+        return waitingForKey;
+    }
+
+    public void setDisplaySink(DisplaySink sink) {
+        video.setDisplaySink(sink);
     }
 
     public Keyboard getKeyboard() {
         return keyboard;
     }
 
-    // Interpreta os opcodes
-    void execute() throws Exception {
-        opcode = (short) ((((short) memory[pc] << 8) & 0x0000ff00) + ((short) memory[pc + 1] & 0xff));
-        // Hex string versions for debugging
-        String hxpc = Integer.toHexString(pc);
-        String hxcode = Integer.toHexString(opcode);
-        //System.out.println(hxpc + ":"
-        //        + hxcode);
-
-        switch ((opcode & 0xf000) >>> 12) {
+    // Executes a single instruction, with no pacing and no rendering
+    // other than what the attached display sink does. Returns false when
+    // an FX0A has to wait for a key.
+    public boolean step() throws Exception {
+        return cycles(1) == 1;
+    }
+
+    // Executes up to budget instructions and returns how many were run.
+    // Compiled blocks are only entered when they fit in what is left of
+    // the budget, so the machine state after N instructions is the same
+    // with and without the JIT.
+    // Stops early, without counting it, on an FX0A that has to wait.
+    // An idle loop skips to the end of the budget (see isIdleLoop).
+    public int cycles(int budget) throws Exception {
+        int executed = 0;
+        if (waitingForKey) {
+            latchInput(true);
+            waitingForKey = false;
+            if (metrics != null) {
+                metrics.keyWaitEnded();
+            }
+        }
+        suspended = false;
+
+        if (tracer != null) {
+            executed = tracedCycles(budget);
+            instructions += executed;
+            return executed;
+        }
+
+        if (profiler != null) {
+            executed = profiledCycles(budget);
+            instructions += executed;
+            return executed;
+        }
+
+        if (metrics != null) {
+            executed = countedCycles(budget);
+            instructions += executed;
+            return executed;
+        }
+
+        if (jit == null || jit.resting()) {
+            while (executed < budget) {
+                execute();
+                if (suspended) {
+                    if (waitingForKey) {
+                        break;
+                    }
+                    executed += skipIdle(budget - executed);
+                    continue;
+                }
+                executed++;
+            }
+            instructions += executed;
+            return executed;
+        }
+
+        // the lookup is inlined here: called through blockAt, it costs
+        // code made of short blocks more than the blocks save
+        BlockCompiler.Block[] blocks = jit.blocks;
+        int compiled = 0;
+        while (executed < budget) {
+            BlockCompiler.Block block = blocks[pc];
+            if (block == null) {
+                block = jit.warm(pc);
+            }
+            if (block != null && block.length <= budget - executed) {
+                block.run(this);
+                executed += block.length;
+                compiled += block.length;
+            } else {
+                execute();
+                if (suspended) {
+                    if (waitingForKey) {
+                        break;
+                    }
+                    executed += skipIdle(budget - executed);
+                    continue;
+                }
+                executed++;
+            }
+        }
+        jit.ran(executed, compiled);
+        instructions += executed;
+        return executed;
+    }
+
+    // A backward jump closes an idle loop when its body only reads the
+    // delay timer and the keypad and tests registers, and one more pass
+    // over it leaves the registers as they are. DT and the keypad only
+    // change between frames, so every pass until the end of the frame
+    // would be the same one again.
+    private boolean isIdleLoop(int start, int end) {
+        if (start < 0 || end - start > 2 * (MAX_IDLE_LENGTH - 1)) {
+            return false;
+        }
+        byte[] w = idleRegisters;
+        System.arraycopy(v, 0, w, 0, 16);
+
+        int p = start;
+        for (int n = 0; n < MAX_IDLE_LENGTH; n++) {
+            if (p > end) {
+                return false;
+            }
+            idlePath[n] = p;
+            int entry = decodedAt(p);
+            int x = (entry & 0x0f00) >>> 8;
+            int y = (entry & 0x00f0) >>> 4;
+            int kk = entry & 0x00ff;
+
+            // same tests as in execute()
+            switch (entry >>> 16) {
+                case OP_JP:
+                    if (p != end) {
+                        return false;
+                    }
+                    idleLength = n + 1;
+                    return Arrays.equals(w, v);
+                case OP_LD_VX_DT:
+                    w[x] = delay;
+                    p += 2;
+                    break;
+                case OP_SE_KK:
+                    p += (w[x] == kk) ? 4 : 2;
+                    break;
+                case OP_SNE_KK:
+                    p += (w[x] != kk) ? 4 : 2;
+                    break;
+                case OP_SE_XY:
+                    p += (w[x] == w[y]) ? 4 : 2;
+                    break;
+                case OP_SNE_XY:
+                    p += (w[x] != w[y]) ? 4 : 2;
+                    break;
+                case OP_SKP:
+                    p += keyPressed(w[x]) ? 4 : 2;
+                    break;
+                case OP_SKNP:
+                    p += !keyPressed(w[x]) ? 4 : 2;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    // Accounts for the rest of the budget, the closing jump included, as
+    // passes over the idle loop: pc and opcode end up where running them
+    // one by one would leave them, and nothing else changes
+    private int skipIdle(int remaining) {
+        suspended = false;
+        int passes = (remaining - 1) / idleLength;
+        int rest = (remaining - 1) % idleLength;
+        pc = idlePath[rest];
+        if (rest > 0 || passes > 0) {
+            opcode = (short) decodedAt(idlePath[(rest + idleLength - 1) % idleLength]);
+        }
+        if (metrics != null) {
+            long[] counters = metrics.counters;
+            counters[EmulatorMetrics.slot(decodedAt(idlePath[idleLength - 1]))]++;
+            for (int a = 0; a < idleLength; a++) {
+                counters[EmulatorMetrics.slot(decodedAt(idlePath[a]))] += passes + (a < rest ? 1 : 0);
+            }
+            metrics.idleSkipped(remaining - 1);
+        }
+        return remaining;
+    }
+
+    // Turns the idle loop skip on or off; either way the machine ends
+    // each budget in the same state
+    public void setIdleSkipEnabled(boolean enabled) {
+        idleSkip = enabled;
+    }
+
+    public boolean isIdleSkipEnabled() {
+        return idleSkip;
+    }
+
+    // Same as the loops above, also counting each opcode family. Kept
+    // apart so the loops stay free of metrics checks when they are off.
+    private int countedCycles(int budget) throws Exception {
+        long[] counters = metrics.counters;
+        int executed = 0;
+        while (executed < budget) {
+            BlockCompiler.Block block = jit != null ? jit.blockAt(pc) : null;
+            if (block != null && block.length <= budget - executed) {
+                for (int a = 0; a < block.length; a++) {
+                    counters[EmulatorMetrics.slot(decodedAt(block.start + 2 * a))]++;
+                }
+                block.run(this);
+                executed += block.length;
+            } else {
+                execute();
+                if (suspended) {
+                    if (waitingForKey) {
+                        metrics.keyWaitStarted();
+                        break;
+                    }
+                    executed += skipIdle(budget - executed);
+                    continue;
+                }
+                counters[EmulatorMetrics.slot(opcode)]++;
+                executed++;
+            }
+        }
+        return executed;
+    }
+
+    // The counting loop with a Profiler attached, which also keeps the
+    // metrics when they are on
+    private int profiledCycles(int budget) throws Exception {
+        Profiler p = profiler;
+        long[] counters = metrics != null ? metrics.counters : null;
+        int executed = 0;
+        while (executed < budget) {
+            int from = pc;
+            int handler = OP_NOP;
+            BlockCompiler.Block block = jit != null ? jit.blockAt(pc) : null;
+            if (block != null && block.length <= budget - executed) {
+                for (int a = 0; a < block.length; a++) {
+                    int address = block.start + 2 * a;
+                    p.pcCounts[address]++;
+                    if (counters != null) {
+                        counters[EmulatorMetrics.slot(decodedAt(address))]++;
+                    }
+                }
+                block.run(this);
+                executed += block.length;
+                p.untilSample -= block.length;
+                from = block.start + 2 * (block.length - 1);
+            } else {
+                handler = decodedAt(pc) >>> 16;
+                execute();
+                if (suspended) {
+                    if (waitingForKey) {
+                        if (metrics != null) {
+                            metrics.keyWaitStarted();
+                        }
+                        break;
+                    }
+                    // idle loops are left to spin, they are what to look for
+                    suspended = false;
+                }
+                p.pcCounts[from]++;
+                if (counters != null) {
+                    counters[EmulatorMetrics.slot(opcode)]++;
+                }
+                // a call below 0x200 has a negative pc and is not counted
+                if (handler == OP_CALL && pc >= 0 && pc < p.callCounts.length) {
+                    p.callCounts[pc]++;
+                }
+                executed++;
+                p.untilSample--;
+            }
+            // a jump or skip back is a loop; a return only looks like one
+            if (pc <= from && pc >= 0 && handler != OP_RET && handler != OP_STALL) {
+                p.backEdge(from, pc);
+            }
+            if (p.untilSample <= 0) {
+                p.sample(this);
+            }
+        }
+        p.counted(executed);
+        return executed;
+    }
+
+    // Interprets one instruction at a time, writing each to the tracer.
+    // Compiled blocks are not entered and idle loops spin, so the trace
+    // has every instruction; the profiler is not fed while tracing.
+    private int tracedCycles(int budget) throws Exception {
+        TraceRecorder t = tracer;
+        byte[] before = tracedRegisters;
+        long[] counters = metrics != null ? metrics.counters : null;
+        int executed = 0;
+        while (executed < budget) {
+            int from = pc;
+            System.arraycopy(v, 0, before, 0, 16);
+            execute();
+            if (suspended) {
+                if (waitingForKey) {
+                    if (metrics != null) {
+                        metrics.keyWaitStarted();
+                    }
+                    break;
+                }
+                suspended = false;
+            }
+            t.record(from, opcode, i, sp, v, before);
+            if (counters != null) {
+                counters[EmulatorMetrics.slot(opcode)]++;
+            }
+            executed++;
+        }
+        t.commit();
+        return executed;
+    }
+
+    // Records every executed instruction into tracer, or stops tracing
+    // when null. Tracing takes precedence over the profiler.
+    public void setTraceRecorder(TraceRecorder tracer) {
+        this.tracer = tracer;
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return tracer;
+    }
+
+    // Counts executed addresses into profiler, or stops profiling when
+    // null. The normal loops are not touched either way.
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    // Starts counting into a new EmulatorMetrics, or stops when false
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            metrics = null;
+        } else if (metrics == null) {
+            metrics = new EmulatorMetrics(instructions);
+        }
+    }
+
+    // The current metrics, or null when disabled
+    public EmulatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Instructions executed since the machine was created
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    // FNV-1a hash of the framebuffer and the CPU registers, used to check
+    // runs against known results
+    public long stateHash() {
+        long hash = 0xcbf29ce484222325L;
+        for (int y = 0; y < 32; y++) {
+            hash = fnv(hash, video.getRow(y));
+        }
+        for (int a = 0; a < 16; a++) {
+            hash = fnv(hash, v[a]);
+        }
+        hash = fnv(hash, i);
+        hash = fnv(hash, pc);
+        hash = fnv(hash, sp);
+        for (int a = 0; a < sp && a < stack.length; a++) {
+            hash = fnv(hash, stack[a]);
+        }
+        hash = fnv(hash, delay);
+        hash = fnv(hash, sound);
+        return hash;
+    }
+
+    private static long fnv(long hash, long value) {
+        for (int b = 0; b < 8; b++) {
+            hash ^= value & 0xff;
+            hash *= 0x100000001b3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    // Ends a 60 Hz frame: ticks the delay and sound timers, which count
+    // down as unsigned bytes, sounds the frame's tone and presents the
+    // display
+    public void endFrame() {
+        endFrame(true);
+    }
+
+    // Same, presenting the display only when present is set; rows changed
+    // in skipped frames stay dirty until the next one presented
+    public void endFrame(boolean present) {
+        if (delay != 0) {
+            delay--;
+        }
+        if (audio != null) {
+            audio.frameEnded(sound != 0);
+        }
+        if (sound != 0) {
+            sound--;
+        }
+        if (metrics != null) {
+            long start = System.nanoTime();
+            if (present) {
+                video.updateDisplay();
+            }
+            metrics.frameEnded(instructions, System.nanoTime() - start);
+        } else if (present) {
+            video.updateDisplay();
+        }
+        frame++;
+        latchInput(false);
+        if (rewind != null) {
+            rewind.record(this);
+        }
+    }
+
+    // Records every frame into buffer, or stops recording when null
+    public void setRewindBuffer(RewindBuffer buffer) {
+        this.rewind = buffer;
+    }
+
+    public RewindBuffer getRewindBuffer() {
+        return rewind;
+    }
+
+    // Plays the sound timer through engine, or stays silent when null
+    public void setAudioEngine(AudioEngine engine) {
+        this.audio = engine;
+    }
+
+    public AudioEngine getAudioEngine() {
+        return audio;
+    }
+
+    public long getFrameCount() {
+        return frame;
+    }
+
+    // Called after SaveState rewrote the machine state
+    void stateRestored(long frame) {
+        this.frame = frame;
+        waitingForKey = false;
+        suspended = false;
+        Arrays.fill(decoded, 0);
+        if (jit != null) {
+            jit.reset();
+        }
+    }
+
+    public FrameScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Turns the block compiler on or off. It needs Java 9 or later to
+    // define classes; elsewhere the core stays on the interpreter and
+    // isJitEnabled() says so.
+    public void setJitEnabled(boolean enabled) {
+        if (enabled && jit == null && BlockCompiler.isAvailable()) {
+            jit = new BlockCompiler(this);
+        } else if (!enabled) {
+            jit = null;
+        }
+    }
+
+    public boolean isJitEnabled() {
+        return jit != null;
+    }
+
+    // A 0000 opcode never advances pc, so the machine is halted once
+    // it is the next instruction to execute
+    public boolean isHalted() {
+        return pc >= 0 && pc + 1 < memory.length
+                && memory[pc] == 0 && memory[pc + 1] == 0;
+    }
+
+    // Handlers stored in the decoded instruction cache
+    static final int OP_STALL = 1; // unknown opcodes leave pc untouched
+    static final int OP_NOP = 2;
+    static final int OP_CLS = 3;
+    static final int OP_RET = 4;
+    static final int OP_JP = 5;
+    static final int OP_CALL = 6;
+    static final int OP_SE_KK = 7;
+    static final int OP_SNE_KK = 8;
+    static final int OP_SE_XY = 9;
+    static final int OP_LD_KK = 10;
+    static final int OP_ADD_KK = 11;
+    static final int OP_LD_XY = 12;
+    static final int OP_OR = 13;
+    static final int OP_AND = 14;
+    static final int OP_XOR = 15;
+    static final int OP_ADD_XY = 16;
+    static final int OP_SUB = 17;
+    static final int OP_SHR = 18;
+    static final int OP_SUBN = 19;
+    static final int OP_SHL = 20;
+    static final int OP_SNE_XY = 21;
+    static final int OP_LD_I = 22;
+    static final int OP_JP_V0 = 23;
+    static final int OP_RND = 24;
+    static final int OP_DRW = 25;
+    static final int OP_SKP = 26;
+    static final int OP_SKNP = 27;
+    static final int OP_LD_K = 28;
+    static final int OP_LD_VX_DT = 29;
+    static final int OP_LD_DT = 30;
+    static final int OP_LD_ST = 31;
+    static final int OP_ADD_I = 32;
+    static final int OP_LD_F = 33;
+    static final int OP_BCD = 34;
+    static final int OP_STORE = 35;
+    static final int OP_LOAD = 36;
+
+    // Maps an opcode to its handler, following the same decoding rules
+    // the interpreter always had (including its catch-all branches)
+    static int handlerOf(int op) {
+        int y = (op & 0x00f0) >>> 4;
+        int n = op & 0x000f;
+
+        switch ((op & 0xf000) >>> 12) {
             case 0x00:
-                switch (y()) {
+                switch (y) {
                     // 00CN Scroll down N lines (***)
                     case 0x0c:
-                        // implementar
-                        pc += 2;
-                        break;
+                        return OP_NOP;
+                    // 00E0 Erase the screen / 00EE Return from a CHIP-8 sub-routine
                     case 0x0e:
-                        // 00E0 Erase the screen
-                        if ((opcode & 0x000f) == 0x00) {
-                            // implementar
-                            for (int i = 0; i < VideoAdapter.MEMORY_SIZE; i++) {
-                                video.memoryWrite(i, (byte) 0);
-                            }
-                            pc += 2;
-                        } else { // 00EE Return from a CHIP-8 sub-routine
-                            pc = stack[--sp];
-                        }
-                        break;
+                        return n == 0x00 ? OP_CLS : OP_RET;
+                    // 00FB..00FF SCHIP instructions (***)
                     case 0x0f:
-                        // 00FB Scroll 4 pixels right (***)
-                        // 00FC Scroll 4 pixels left (***)
-
-                        // 00FD Quit the emulator (***)
-                        // 00FE Set CHIP-8 graphic mode (***)
-                        // 00FF Set SCHIP graphic mode (***)
-                        pc += 2;
-                        break;
+                        return OP_NOP;
+                }
+                return OP_STALL;
+            case 0x01:
+                return OP_JP;
+            case 0x02:
+                return OP_CALL;
+            case 0x03:
+                return OP_SE_KK;
+            case 0x04:
+                return OP_SNE_KK;
+            case 0x05:
+                return OP_SE_XY;
+            case 0x06:
+                return OP_LD_KK;
+            case 0x07:
+                return OP_ADD_KK;
+            case 0x08:
+                switch (n) {
+                    case 0x00:
+                        return OP_LD_XY;
+                    case 0x01:
+                        return OP_OR;
+                    case 0x02:
+                        return OP_AND;
+                    case 0x03:
+                        return OP_XOR;
+                    case 0x04:
+                        return OP_ADD_XY;
+                    case 0x05:
+                        return OP_SUB;
+                    case 0x06:
+                        return OP_SHR;
+                    case 0x07:
+                        return OP_SUBN;
+                    case 0x0e:
+                        return OP_SHL;
                 }
+                return OP_NOP;
+            case 0x09:
+                return OP_SNE_XY;
+            case 0x0a:
+                return OP_LD_I;
+            case 0x0b:
+                return OP_JP_V0;
+            case 0x0c:
+                return OP_RND;
+            case 0x0d:
+                return OP_DRW;
+            case 0x0e:
+                return y == 0x09 ? OP_SKP : OP_SKNP;
+            default:
+                switch (y) {
+                    case 0x00:
+                        return n == 0x0a ? OP_LD_K : OP_LD_VX_DT;
+                    case 0x01:
+                        switch (n) {
+                            case 0x05:
+                                return OP_LD_DT;
+                            case 0x08:
+                                return OP_LD_ST;
+                            case 0x0e:
+                                return OP_ADD_I;
+                        }
+                        return OP_NOP;
+                    case 0x02:
+                        return OP_LD_F;
+                    case 0x03:
+                        return OP_BCD;
+                    case 0x05:
+                        return OP_STORE;
+                    case 0x06:
+                        return OP_LOAD;
+                }
+                return OP_STALL;
+        }
+    }
+
+    int decodedAt(int address) {
+        int entry = decoded[address];
+        return entry != 0 ? entry : decode(address);
+    }
+
+    private int decode(int address) {
+        int op = (((short) memory[address] << 8) & 0x0000ff00) + ((short) memory[address + 1] & 0xff);
+        int entry = (handlerOf(op) << 16) | op;
+        decoded[address] = entry;
+        return entry;
+    }
+
+    // Drops the cached decoding of every instruction overlapping address
+    private void invalidate(int address) {
+        decoded[address] = 0;
+        if (address > 0) {
+            decoded[address - 1] = 0;
+        }
+        if (jit != null) {
+            jit.invalidate(address);
+        }
+    }
+
+    // DXYN Draws a sprite at (VX,VY) starting at M(I). VF = collision.
+    // If N=0, draws 16 rows instead of N. Wrapping and clipping follow
+    // the rules documented on VideoAdapter.
+    void drawSprite(int x, int y, int n) {
+        int coordX = v[x] & 0x3f;
+        int coordY = v[y] & 0x1f;
+        int spriteH = n == 0 ? 16 : n;
+        boolean collision = false;
+
+        for (int yline = 0; yline < spriteH; yline++) {
+            collision |= video.drawSpriteRow(coordX, coordY + yline, memory[i + yline]);
+        }
+        v[0x0f] = (byte) (collision ? 1 : 0);
+    }
+
+    // FX33 Store BCD representation of VX in M(I)...M(I+2)
+    void storeBcd(int x) {
+        byte vx = v[x];
+
+        memory[i] = (short) ((vx / 100) % 10);
+        memory[i + 1] = (short) ((vx / 10) % 10);
+        memory[i + 2] = (short) (vx % 10);
+        invalidate(i);
+        invalidate(i + 1);
+        invalidate(i + 2);
+    }
+
+    // FX55 Save V0...VX in memory starting at M(I)
+    void storeRegisters(int x) {
+        for (int j = 0x00, k = i; j <= x; j++) {
+            // Registers store 2 bytes, but memory positions store just 1
+            if (j % 2 == 0) {
+                memory[k] = (byte) ((v[j] & 0xff00) >>> 8);
+            } else {
+                memory[k] = (byte) (v[j] & 0x00ff);
+            }
+            invalidate(k++);
+        }
+    }
+
+    // Interpreta os opcodes
+    void execute() throws Exception {
+        int entry = decoded[pc];
+        if (entry == 0) {
+            entry = decode(pc);
+        }
+        opcode = (short) entry;
+
+        int x = (entry & 0x0f00) >>> 8;
+        int y = (entry & 0x00f0) >>> 4;
+        int kk = entry & 0x00ff;
+        int nnn = entry & 0x0fff;
+
+        switch (entry >>> 16) {
+            case OP_STALL:
+                break;
+
+            case OP_NOP:
+                pc += 2;
+                break;
+
+            // 00E0 Erase the screen
+            case OP_CLS:
+                video.clear();
+                pc += 2;
+                break;
+
+            // 00EE Return from a CHIP-8 sub-routine
+            case OP_RET:
+                pc = stack[--sp];
                 break;
 
             // 1NNN Jump to NNN
-            case 0x01:
-                pc = (opcode & 0x0fff) - 0x0200;
+            case OP_JP:
+                if (nnn - 0x0200 <= pc && idleSkip && isIdleLoop(nnn - 0x0200, pc)) {
+                    suspended = true;
+                }
+                pc = nnn - 0x0200;
                 break;
 
             // 2NNN Call CHIP-8 sub-routine at NNN (16 successive calls max)
-            case 0x02:
+            case OP_CALL:
                 stack[sp++] = pc + 2;
-                pc = (opcode & 0x0fff) - 0x0200;
+                pc = nnn - 0x0200;
                 break;
 
             // 3XKK Skip next instruction if VX == KK
-            case 0x03:
-                pc += (v[x()] == kk()) ? 4 : 2;
+            case OP_SE_KK:
+                pc += (v[x] == kk) ? 4 : 2;
                 break;
 
             // 4XKK Skip next instruction if VX != KK
-            case 0x04:
-                pc += (v[x()] != kk()) ? 4 : 2;
+            case OP_SNE_KK:
+                pc += (v[x] != kk) ? 4 : 2;
                 break;
 
             // 5XY0 Skip next instruction if VX == VY
-            case 0x05:
-                pc += (v[x()] == v[y()]) ? 4 : 2;
+            case OP_SE_XY:
+                pc += (v[x] == v[y]) ? 4 : 2;
                 break;
 
             // 6XKK VX = KK
-            case 0x06:
-                v[x()] = (byte) (kk());
+            case OP_LD_KK:
+                v[x] = (byte) kk;
                 pc += 2;
                 break;
 
             // 7XKK VX = VX + KK
-            case 0x07:
-                v[x()] += (kk());
+            case OP_ADD_KK:
+                v[x] += kk;
                 pc += 2;
                 break;
 
-            // 8XY* Muitas operações envolvendo VX e VY
-            case 0x08:
-                switch (opcode & 0x000f) {
-                    // 8XY0 VX = VY
-                    case 0x00:
-                        v[x()] = v[y()];
-                        break;
+            // 8XY0 VX = VY
+            case OP_LD_XY:
+                v[x] = v[y];
+                pc += 2;
+                break;
 
-                    // 8XY1 VX = VX OR VY
-                    case 0x01:
-                        v[x()] = (byte) (v[x()] | v[y()]);
-                        break;
+            // 8XY1 VX = VX OR VY
+            case OP_OR:
+                v[x] = (byte) (v[x] | v[y]);
+                pc += 2;
+                break;
 
-                    // 8XY2 VX = VX AND VY
-                    case 0x02:
-                        v[x()] = (byte) (v[x()] & v[y()]);
-                        break;
+            // 8XY2 VX = VX AND VY
+            case OP_AND:
+                v[x] = (byte) (v[x] & v[y]);
+                pc += 2;
+                break;
 
-                    // 8XY3 VX = VX XOR VY (*)
-                    case 0x03:
-                        v[x()] = (byte) (v[x()] ^ v[y()]);
-                        break;
+            // 8XY3 VX = VX XOR VY (*)
+            case OP_XOR:
+                v[x] = (byte) (v[x] ^ v[y]);
+                pc += 2;
+                break;
 
-                    // @TODO: review this instruction
-                    // 8XY4 VX = VX + VY, VF = carry
-                    case 0x04:
-                        // v[0x0f] = (byte)((v[x()] + v[y()]) < 0x00ff ? 0 : 1);
-                        v[0x0f] = (byte) ((v[x()] + v[y()]) - 0xff);
-                        if (v[0x0f] < 0) {
-                            v[0x0f] = 0;
-                        }
-                        v[x()] = (byte) (v[x()] + v[y()]);
-                        break;
+            // @TODO: review this instruction
+            // 8XY4 VX = VX + VY, VF = carry
+            case OP_ADD_XY:
+                v[0x0f] = (byte) ((v[x] + v[y]) - 0xff);
+                if (v[0x0f] < 0) {
+                    v[0x0f] = 0;
+                }
+                v[x] = (byte) (v[x] + v[y]);
+                pc += 2;
+                break;
 
-                    // 8XY5 VX = VX - VY, VF = not borrow (**)
-                    case 0x05:
-                        v[0x0f] = (byte) (v[x()] >= v[y()] ? 0x01 : 0x00);
-                        v[x()] = (byte) (v[x()] - v[y()]);
-                        break;
+            // 8XY5 VX = VX - VY, VF = not borrow (**)
+            case OP_SUB:
+                v[0x0f] = (byte) (v[x] >= v[y] ? 0x01 : 0x00);
+                v[x] = (byte) (v[x] - v[y]);
+                pc += 2;
+                break;
 
-                    // 8XY6 VX = VX SHR 1 (VX=VX/2), VF = carry
-                    case 0x06:
-                        v[0x0f] = (byte) (v[x()] & 0x01);
-                        v[x()] = (byte) (v[x()] >>> 1);
-                        break;
+            // 8XY6 VX = VX SHR 1 (VX=VX/2), VF = carry
+            case OP_SHR:
+                v[0x0f] = (byte) (v[x] & 0x01);
+                v[x] = (byte) (v[x] >>> 1);
+                pc += 2;
+                break;
 
-                    // 8XY7 VX = VY - VX, VF = not borrow (*) (**)
-                    case 0x07:
-                        v[0x0f] = (byte) (v[y()] >= v[x()] ? 0x01 : 0x00);
-                        v[x()] = (byte) (v[y()] - v[x()]);
-                        break;
+            // 8XY7 VX = VY - VX, VF = not borrow (*) (**)
+            case OP_SUBN:
+                v[0x0f] = (byte) (v[y] >= v[x] ? 0x01 : 0x00);
+                v[x] = (byte) (v[y] - v[x]);
+                pc += 2;
+                break;
 
-                    // 8XYE VX = VX SHL 1 (VX=VX*2), VF = carry
-                    case 0x0e:
-                        v[0x0f] = (byte) (v[x()] & 0x40);
-                        v[x()] = (byte) (v[x()] << 1);
-                        break;
-                }
+            // 8XYE VX = VX SHL 1 (VX=VX*2), VF = carry
+            case OP_SHL:
+                v[0x0f] = (byte) (v[x] & 0x40);
+                v[x] = (byte) (v[x] << 1);
                 pc += 2;
                 break;
 
             // 9XY0 Skip next instruction if VX != VY
-            case 0x09:
-                pc += (v[x()] != v[y()]) ? 4 : 2;
+            case OP_SNE_XY:
+                pc += (v[x] != v[y]) ? 4 : 2;
                 break;
 
             // ANNN I = NNN
-            case 0x0a:
-                i = (opcode & 0x0fff) - 0x0200;
+            case OP_LD_I:
+                i = nnn - 0x0200;
                 pc += 2;
                 break;
 
             // BNNN Jump to NNN + V0
-            case 0x0b:
-                pc = (opcode & 0x0fff) + v[0x00];
+            case OP_JP_V0:
+                pc = nnn + v[0x00];
                 break;
 
             // CXKK VX = Random number AND KK
-            case 0x0c:
-                v[x()] = (byte) ((byte) ((1000 * Math.random()) % 256)
-                        & (kk()));
+            case OP_RND:
+                v[x] = (byte) (nextRandom() & kk);
                 pc += 2;
                 break;
 
             // DXYN Draws a sprite at (VX,VY) starting at M(I). VF = collision.
             // If N=0, draws the 16 x 16 sprite, else an 8 x N sprite.
-            case 0x0d:
-                int spriteW,
-                 spriteH;
-                int coordX,
-                 coordY;
-
-                coordX = x();
-                coordY = y();
-
-                v[0x0f] = 0; // Limpa colisões anteriores
-                // @TODO: Substituir este tratamento para ao 
-                // invés de utiliar height, usar a qtde de
-                // bytes do opcode (terceiro parâmetro)
-                if ((opcode & 0x000f) == 0) {
-                    spriteW = 16;
-                    spriteH = 16;
-                } else {
-                    spriteW = 8;
-                    spriteH = opcode & 0x000f;
-                }
+            case OP_DRW:
+                drawSprite(x, y, entry & 0x000f);
+                pc += 2;
+                break;
 
-                for (int yline = 0; yline < (spriteH); yline++) {
-                    short data = memory[i + yline]; //this retreives the byte for a give line of pixels
-                    for (int xpix = 0; xpix < spriteW; xpix++) {
-                        if ((data & (0x80 >>> xpix)) != 0) {
-                            if (video.memoryRead(v[coordX] + xpix + ((v[coordY] + yline) * 64)) == 1) {
-                                v[0x0f] = 1; //there has been a collision
-                            }
-                            video.memoryWrite(v[coordX] + xpix + ((v[coordY] + yline) * 64),
-                                    (byte) ((video.memoryRead(v[coordX] + xpix + ((v[coordY] + yline) * 64)) ^ 0x0001))); //note: coordinate registers from opcode
-                        }
-                    }
+            // EX9E Skip next instruction if key VX pressed
+            case OP_SKP:
+                pc += keyPressed(v[x]) ? 4 : 2;
+                break;
+
+            // EXA1 Skip next instruction if key VX not pressed
+            case OP_SKNP:
+                pc += !keyPressed(v[x]) ? 4 : 2;
+                break;
+
+            // FX0A Waits a keypress and stores it in VX
+            case OP_LD_K:
+                if (typedKey == -1) {
+                    waitingForKey = true;
+                    suspended = true;
+                    break;
                 }
-                video.updateDisplay();
+                v[x] = (byte) typedKey;
+                typedKey = -1;
                 pc += 2;
                 break;
 
-            case 0x0e:
-                // EX9E Skip next instruction if key VX pressed
-                if ((y()) == 0x09) {
-                    pc += keyPressed(v[x()]) ? 4 : 2;
-                } else // EXA1 Skip next instruction if key VX not pressed
-                {
-                    pc += !keyPressed(v[x()]) ? 4 : 2;
-                }
+            // FX07 VX = Delay timer
+            case OP_LD_VX_DT:
+                v[x] = delay;
+                pc += 2;
                 break;
-            case 0x0f:
-                switch (y()) {
-                    case 0x00:
-                        // FX0A Waits a keypress and stores it in VX
-                        if ((opcode & 0x000f) == 0x0a) {
-                            v[x()] = (byte) readKey();
-                        } else // FX07 VX = Delay timer
-                        {
-                            v[x()] = delay;
-                        }
-                        pc += 2;
-                        break;
-                    case 0x01:
-                        switch (opcode & 0x000f) {
-                            // FX15 Delay timer = VX
-                            case 0x05:
-                                delay = v[x()];
-                                break;
-                            // FX18 Sound timer = VX
-                            case 0x08:
-                                sound = v[x()];
-                                break;
-                            // FX1E I = I + VX
-                            case 0x0e:
-                                i = i + v[x()];
-                                break;
-                        }
-                        pc += 2;
-                        break;
-                    // FX29 I points to the 4 x 5 font sprite of hex char in VX
-                    case 0x02:
-                        i = (v[x()] * 5) + 0xfff - 80;
-                        pc += 2;
 
-                        break;
+            // FX15 Delay timer = VX
+            case OP_LD_DT:
+                delay = v[x];
+                pc += 2;
+                break;
 
-                    // FX33 Store BCD representation of VX in M(I)...M(I+2)
-                    case 0x03:
-                        byte vx = (byte) v[x()];
+            // FX18 Sound timer = VX
+            case OP_LD_ST:
+                sound = v[x];
+                pc += 2;
+                break;
 
-                        memory[i] = (short) ((vx / 100) % 10);
-                        memory[i + 1] = (short) ((vx / 10) % 10);
-                        memory[i + 2] = (short) (vx % 10);
+            // FX1E I = I + VX
+            case OP_ADD_I:
+                i = i + v[x];
+                pc += 2;
+                break;
 
-                        pc += 2;
-                        break;
+            // FX29 I points to the 4 x 5 font sprite of hex char in VX
+            case OP_LD_F:
+                i = (v[x] * 5) + 0xfff - 80;
+                pc += 2;
+                break;
 
-                    // FX55 Save V0...VX in memory starting at M(I)
-                    case 0x05:
-                        for (int j = 0x00, k = i; j <= (x()); j++) {
-                            // Registers store 2 bytes, but memory positions store just 1
-                            if (j % 2 == 0) {
-                                memory[k++] = (byte) ((v[j] & 0xff00) >>> 8);
-                            } else {
-                                memory[k++] = (byte) (v[j] & 0x00ff);
-                            }
-                        }
-                        pc += 2;
-                        break;
+            // FX33 Store BCD representation of VX in M(I)...M(I+2)
+            case OP_BCD:
+                storeBcd(x);
+                pc += 2;
+                break;
 
-                    // FX65 Load V0...VX from memory starting at M(I)
-                    case 0x06:
-                        for (int j = 0x00, k = i; j <= (x()); j++) {
-                            v[j] = (byte) memory[k++];
-                        }
-                        i = i + x() + 1;
-                        pc += 2;
-                        break;
+            // FX55 Save V0...VX in memory starting at M(I)
+            case OP_STORE:
+                storeRegisters(x);
+                pc += 2;
+                break;
+
+            // FX65 Load V0...VX from memory starting at M(I)
+            case OP_LOAD:
+                for (int j = 0x00, k = i; j <= x; j++) {
+                    v[j] = (byte) memory[k++];
                 }
+                i = i + x + 1;
+                pc += 2;
                 break;
         }
 
@@ -414,34 +1151,13 @@ FX85 Load V0...VX (X<8) from the HP48 flags (***)
 (**): When you do VX - VY, VF is set to the negation of the borrow.
       This means that if VX is superior or equal to VY, VF will be set to 01,
       as the borrow is 0. If VX is inferior to VY, VF is set to 00, as the borrow is 1.
-(***): SCHIP Instruction. Can be used in CHIP8 graphic mode */
+(***): SCHIP Instruction. Can be used in CHIP-8 graphic mode */
     }
 
+    // Runs the machine in real time until it halts or the scheduler is
+    // stopped
     public void run() {
-        int c;
-        try {
-            do {
-                for (int k = 0; k < 1000; k++) {
-                    execute();
-                }
-                Thread.sleep(17);
-                c = 0;
-                while (delay > 0) {
-                    Thread.sleep(17);
-                    delay--;
-                }
-
-                c = 0;
-                while (sound > 0) {
-                    Thread.sleep(17);
-                    sound--;
-                }
-
-            } while (opcode != 0x0000);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
+        scheduler.run();
     }
 
     public int x() {
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Runtime counters of one EmulatorCore: instructions, a histogram of the
+// 16 opcode families (the top nibble), draw calls, time spent presenting
+// the display and time spent waiting on FX0A.
+//
+// Only the emulator thread writes the counters, with plain stores into a
+// private array that is padded on both sides, so cores running on other
+// threads never share a cache line with it. The frame count is volatile
+// and written last at the end of every frame; readers load it first and
+// see every counter as of that frame.
+public class EmulatorMetrics implements EmulatorMetricsMBean {
+
+    public static final String DOMAIN = "com.classicomp.chip8";
+
+    // Longs in a cache line, with a second line of slack for where the
+    // array header happens to fall
+    private static final int PAD = 16;
+
+    private static final int FAMILIES = PAD;
+    private static final int DRAWS = FAMILIES + 0xd;
+    private static final int INSTRUCTIONS = FAMILIES + 16;
+    private static final int DISPLAY_NANOS = INSTRUCTIONS + 1;
+    private static final int KEY_WAIT_NANOS = INSTRUCTIONS + 2;
+    private static final int LAST_DRAWS = INSTRUCTIONS + 3;
+    private static final int DRAWS_LAST_FRAME = INSTRUCTIONS + 4;
+    private static final int IDLE = INSTRUCTIONS + 5;
+    private static final int SLOTS = INSTRUCTIONS + 6;
+
+    // Shared by every instance, so sampling many cores costs one thread
+    private static Timer timer;
+
+    final long[] counters = new long[SLOTS + PAD];
+
+    private volatile long frames = 0;
+    private volatile boolean resetRequested = false;
+    private long instructionsBase;
+    private long startNanos;
+    private long keyWaitStart = 0;
+
+    private volatile Snapshot latest = null;
+    private TimerTask sampler = null;
+    private ObjectName name = null;
+
+    // Counters at one point in time, with the rate of instructions since
+    // the snapshot before it
+    public static class Snapshot {
+
+        public final long nanoTime;
+        public final long frames;
+        public final long instructions;
+        public final double instructionsPerSecond;
+        public final long[] opcodeHistogram;
+        public final long drawCalls;
+        public final long drawCallsLastFrame;
+        public final long displayNanos;
+        public final long keyWaitNanos;
+        public final long idleInstructions;
+
+        Snapshot(EmulatorMetrics m, Snapshot previous) {
+            nanoTime = System.nanoTime();
+            frames = m.frames;
+            long[] c = m.counters;
+            opcodeHistogram = new long[16];
+            System.arraycopy(c, FAMILIES, opcodeHistogram, 0, 16);
+            instructions = c[INSTRUCTIONS];
+            drawCalls = c[DRAWS];
+            drawCallsLastFrame = c[DRAWS_LAST_FRAME];
+            displayNanos = c[DISPLAY_NANOS];
+            keyWaitNanos = c[KEY_WAIT_NANOS];
+            idleInstructions = c[IDLE];
+
+            if (previous != null && nanoTime > previous.nanoTime
+                    && instructions >= previous.instructions) {
+                instructionsPerSecond = (instructions - previous.instructions) * 1e9
+                        / (nanoTime - previous.nanoTime);
+            } else {
+                instructionsPerSecond = 0;
+            }
+        }
+    }
+
+    public interface Listener {
+
+        void metricsSampled(Snapshot snapshot);
+    }
+
+    EmulatorMetrics(long instructions) {
+        instructionsBase = instructions;
+        startNanos = System.nanoTime();
+    }
+
+    static int slot(int opcode) {
+        return FAMILIES + ((opcode >>> 12) & 0xf);
+    }
+
+    // Called by the core at the end of every frame
+    void frameEnded(long instructions, long displayNanos) {
+        long[] c = counters;
+        if (resetRequested) {
+            resetRequested = false;
+            Arrays.fill(c, 0);
+            instructionsBase = instructions;
+            startNanos = System.nanoTime();
+            latest = null;
+            frames = 0;
+            return;
+        }
+        c[INSTRUCTIONS] = instructions - instructionsBase;
+        c[DISPLAY_NANOS] += displayNanos;
+        c[DRAWS_LAST_FRAME] = c[DRAWS] - c[LAST_DRAWS];
+        c[LAST_DRAWS] = c[DRAWS];
+        frames = frames + 1;
+    }
+
+    void idleSkipped(int instructions) {
+        counters[IDLE] += instructions;
+    }
+
+    void keyWaitStarted() {
+        if (keyWaitStart == 0) {
+            keyWaitStart = System.nanoTime();
+        }
+    }
+
+    void keyWaitEnded() {
+        if (keyWaitStart != 0) {
+            counters[KEY_WAIT_NANOS] += System.nanoTime() - keyWaitStart;
+            keyWaitStart = 0;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this, latest);
+    }
+
+    // Takes a snapshot every periodMillis on a shared daemon timer and
+    // hands it to listener, which may be null when only the MBean rates
+    // are wanted
+    public synchronized void startSampling(long periodMillis, final Listener listener) {
+        stopSampling();
+        synchronized (EmulatorMetrics.class) {
+            if (timer == null) {
+                timer = new Timer("chip8-metrics", true);
+            }
+        }
+        latest = new Snapshot(this, null);
+        sampler = new TimerTask() {
+            @Override
+            public void run() {
+                Snapshot snapshot = new Snapshot(EmulatorMetrics.this, latest);
+                latest = snapshot;
+                if (listener != null) {
+                    listener.metricsSampled(snapshot);
+                }
+            }
+        };
+        timer.scheduleAtFixedRate(sampler, periodMillis, periodMillis);
+    }
+
+    public synchronized void stopSampling() {
+        if (sampler != null) {
+            sampler.cancel();
+            sampler = null;
+        }
+    }
+
+    // Publishes this instance as com.classicomp.chip8:type=Emulator,name=...
+    public synchronized ObjectName register(String instanceName) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=Emulator,name="
+                + ObjectName.quote(instanceName));
+        server.registerMBean(this, objectName);
+        name = objectName;
+        return objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    @Override
+    public long getInstructions() {
+        return snapshot().instructions;
+    }
+
+    @Override
+    public long getFrames() {
+        return frames;
+    }
+
+    // Rate between the last two samples while sampling, else since the
+    // metrics were enabled
+    @Override
+    public double getInstructionsPerSecond() {
+        Snapshot snapshot = latest;
+        if (snapshot != null) {
+            return snapshot.instructionsPerSecond;
+        }
+        snapshot = snapshot();
+        long elapsed = snapshot.nanoTime - startNanos;
+        return elapsed <= 0 ? 0 : snapshot.instructions * 1e9 / elapsed;
+    }
+
+    @Override
+    public long[] getOpcodeHistogram() {
+        return snapshot().opcodeHistogram;
+    }
+
+    @Override
+    public long getDrawCalls() {
+        return snapshot().drawCalls;
+    }
+
+    @Override
+    public long getDrawCallsLastFrame() {
+        return snapshot().drawCallsLastFrame;
+    }
+
+    @Override
+    public double getDrawCallsPerFrame() {
+        Snapshot snapshot = snapshot();
+        return snapshot.frames == 0 ? 0 : (double) snapshot.drawCalls / snapshot.frames;
+    }
+
+    @Override
+    public long getDisplayNanos() {
+        return snapshot().displayNanos;
+    }
+
+    @Override
+    public double getDisplayMicrosPerFrame() {
+        Snapshot snapshot = snapshot();
+        return snapshot.frames == 0 ? 0 : snapshot.displayNanos / 1e3 / snapshot.frames;
+    }
+
+    @Override
+    public long getKeyWaitNanos() {
+        return snapshot().keyWaitNanos;
+    }
+
+    @Override
+    public long getIdleInstructions() {
+        return snapshot().idleInstructions;
+    }
+
+    // Counters are only written by the emulator thread, so a reset from
+    // another thread takes effect at the end of the next frame
+    @Override
+    public void reset() {
+        resetRequested = true;
+    }
+}
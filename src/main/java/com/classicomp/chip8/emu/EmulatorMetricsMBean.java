@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+// Management interface of EmulatorMetrics, as seen from JConsole or any
+// other JMX client
+public interface EmulatorMetricsMBean {
+
+    long getInstructions();
+
+    long getFrames();
+
+    double getInstructionsPerSecond();
+
+    long[] getOpcodeHistogram();
+
+    long getDrawCalls();
+
+    long getDrawCallsLastFrame();
+
+    double getDrawCallsPerFrame();
+
+    long getDisplayNanos();
+
+    double getDisplayMicrosPerFrame();
+
+    long getKeyWaitNanos();
+
+    long getIdleInstructions();
+
+    void reset();
+}
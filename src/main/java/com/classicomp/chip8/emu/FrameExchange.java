@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Triple-buffered handoff of finished frames from the emulator thread to
+// a renderer thread. The emulator fills its back buffer and swaps it
+// with the middle one; the renderer swaps its front buffer with the
+// middle one when that holds a frame it has not seen. Each swap is one
+// atomic getAndSet, so neither side ever waits for the other, and each
+// side only touches the buffer it owns.
+//
+// A frame published over one the renderer never took is counted as
+// dropped; a take that finds nothing new is counted as repeated.
+public class FrameExchange implements DisplaySink {
+
+    // middle holds a buffer index, plus this bit when it holds a frame
+    // the renderer has not taken
+    private static final int FRESH = 4;
+
+    private final long[][] buffers = new long[3][32];
+    private final long[] sequence = new long[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // owned by the emulator thread
+    private int back = 0;
+    private volatile long published = 0;
+
+    // owned by the renderer thread
+    private int front = 2;
+
+    private volatile Runnable listener = null;
+    private volatile long dropped = 0;
+    private volatile long repeated = 0;
+
+    // Called after each publish, on the emulator thread; a UI would ask
+    // for a repaint here
+    public void setFrameListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void frameUpdated(VideoAdapter video) {
+        video.takeDirtyRows();
+        long[] rows = buffers[back];
+        for (int y = 0; y < 32; y++) {
+            rows[y] = video.getRow(y);
+        }
+        publish();
+    }
+
+    // Hands the back buffer over; fill buffers[back] before calling
+    private void publish() {
+        sequence[back] = ++published;
+        int old = middle.getAndSet(back | FRESH);
+        back = old & 3;
+        if ((old & FRESH) != 0) {
+            dropped++;
+        }
+        Runnable r = listener;
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    // Renderer side: the newest published frame, which is the same array
+    // as the previous call when nothing new came in. The rows stay valid
+    // until the next call.
+    public long[] take() {
+        if ((middle.get() & FRESH) == 0) {
+            repeated++;
+            return buffers[front];
+        }
+        front = middle.getAndSet(front) & 3;
+        return buffers[front];
+    }
+
+    public boolean hasNewFrame() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+    // Number of the frame last returned by take(), counting from 1
+    public long getFrameNumber() {
+        return sequence[front];
+    }
+
+    public long getPublishedFrames() {
+        return published;
+    }
+
+    public long getDroppedFrames() {
+        return dropped;
+    }
+
+    public long getRepeatedFrames() {
+        return repeated;
+    }
+}
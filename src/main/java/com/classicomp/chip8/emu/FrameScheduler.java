@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Real-time pacing for an EmulatorCore. Every 1/60 s the scheduler runs
+// a budget of instructions, then ends the frame, which ticks the delay and
+// sound timers and presents the display. Deadlines come from
+// System.nanoTime, so a slow frame is made up by the next ones instead of
+// shifting every frame after it.
+//
+// While the machine waits on FX0A the thread parks until the keypad
+// wakes it or the frame ends, and the rest of the budget then runs. In
+// turbo, where frames have no deadline, it parks for up to one real-time
+// frame instead of spinning through empty frames.
+//
+// The speed can be changed while running: above 1 frames come that many
+// times faster, and turbo (speed 0) drops the pacing altogether. Timers
+// still tick once per emulated frame, so the ROM sees the same time, only
+// sooner. Above real time the display is not presented on every frame;
+// see setRenderInterval.
+//
+// Measured instructions per second, speed multiplier and frame jitter
+// (how late each frame started compared to its deadline) are refreshed
+// once per second.
+public class FrameScheduler implements Runnable {
+
+    public static final int FRAME_RATE = 60;
+    public static final long FRAME_NANOS = 1000000000L / FRAME_RATE;
+
+    // Same pace as the old loop, which ran 1000 instructions per 17 ms
+    public static final int DEFAULT_CYCLES_PER_FRAME = 1000;
+
+    // When the host falls further behind than this, deadlines are reset
+    // instead of running a burst of frames to catch up
+    private static final long MAX_LAG_NANOS = 10 * FRAME_NANOS;
+
+    // Render intervals: present as often as the host shows frames, about
+    // 60 per wall-clock second, or never
+    public static final int RENDER_ADAPTIVE = 0;
+    public static final int RENDER_NONE = -1;
+
+    private final EmulatorCore core;
+
+    private volatile int cyclesPerFrame = DEFAULT_CYCLES_PER_FRAME;
+    private volatile boolean running = false;
+    private volatile double speed = 1;
+    private volatile int renderInterval = RENDER_ADAPTIVE;
+
+    private volatile double measuredIps = 0;
+    private volatile long meanJitterNanos = 0;
+    private volatile long maxJitterNanos = 0;
+    private volatile double measuredSpeed = 0;
+
+    public FrameScheduler(EmulatorCore core) {
+        this.core = core;
+    }
+
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        if (cyclesPerFrame < 1) {
+            throw new IllegalArgumentException("cyclesPerFrame must be positive");
+        }
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    // 1 is real time, 2 twice as fast, 0 (turbo) as fast as the host can
+    public void setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("speed must not be negative");
+        }
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public void setTurbo(boolean turbo) {
+        setSpeed(turbo ? 0 : 1);
+    }
+
+    public boolean isTurbo() {
+        return speed == 0;
+    }
+
+    // Above real time, presents every interval-th frame, or uses one of
+    // the RENDER_ constants. At real time and below every frame is
+    // presented.
+    public void setRenderInterval(int interval) {
+        if (interval < RENDER_NONE) {
+            throw new IllegalArgumentException("Bad render interval " + interval);
+        }
+        this.renderInterval = interval;
+    }
+
+    public int getRenderInterval() {
+        return renderInterval;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public double getMeasuredIps() {
+        return measuredIps;
+    }
+
+    public long getMeanJitterNanos() {
+        return meanJitterNanos;
+    }
+
+    public long getMaxJitterNanos() {
+        return maxJitterNanos;
+    }
+
+    // Emulated time over wall time in the last second; 1 is real time
+    public double getMeasuredSpeed() {
+        return measuredSpeed;
+    }
+
+    // Runs up to frames frames back to back with no pacing, as used for
+    // headless runs and input replay, and returns how many ran. An FX0A
+    // wait only resumes within a frame when input is pending; otherwise
+    // the frame just ends.
+    public long runFrames(long frames) throws Exception {
+        long n = 0;
+        while (n < frames && !core.isHalted()) {
+            int budget = cyclesPerFrame;
+            int executed = core.cycles(budget);
+            while (executed < budget && core.isWaitingForKey() && core.hasPendingInput()) {
+                executed += core.cycles(budget - executed);
+            }
+            core.endFrame();
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void run() {
+        running = true;
+
+        long deadline = System.nanoTime();
+        long lastPresent = deadline;
+        long frames = 0;
+        double pace = -1;
+        long windowStart = deadline;
+        long windowInstructions = 0;
+        long windowFrames = 0;
+        long windowPacedFrames = 0;
+        long windowJitter = 0;
+        long windowMaxJitter = 0;
+
+        try {
+            while (running && !core.isHalted()) {
+                // a new speed starts from now, not from the old deadlines
+                double s = speed;
+                if (s != pace) {
+                    pace = s;
+                    deadline = System.nanoTime();
+                }
+                long frameNanos = s > 0 ? (long) (FRAME_NANOS / s) : 0;
+
+                int budget = cyclesPerFrame;
+                int executed = core.cycles(budget);
+                deadline += frameNanos;
+
+                long now = System.nanoTime();
+                long waitUntil = frameNanos > 0 ? deadline : now + FRAME_NANOS;
+                while (executed < budget && core.isWaitingForKey() && now < waitUntil
+                        && !Thread.currentThread().isInterrupted()) {
+                    core.getKeyboard().awaitTypedKey(waitUntil - now);
+                    executed += core.cycles(budget - executed);
+                    now = System.nanoTime();
+                }
+                windowInstructions += executed;
+                frames++;
+
+                boolean present;
+                if (s > 0 && s <= 1) {
+                    present = true;
+                } else if (renderInterval == RENDER_ADAPTIVE) {
+                    present = now - lastPresent >= FRAME_NANOS;
+                } else {
+                    present = renderInterval > 0 && frames % renderInterval == 0;
+                }
+                if (present) {
+                    lastPresent = now;
+                }
+                core.endFrame(present);
+                windowFrames++;
+
+                now = System.nanoTime();
+                if (frameNanos > 0) {
+                    while (now < deadline) {
+                        LockSupport.parkNanos(this, deadline - now);
+                        if (Thread.interrupted()) {
+                            running = false;
+                            return;
+                        }
+                        now = System.nanoTime();
+                    }
+
+                    long jitter = now - deadline;
+                    if (jitter > MAX_LAG_NANOS) {
+                        deadline = now;
+                    }
+                    windowJitter += jitter;
+                    windowMaxJitter = Math.max(windowMaxJitter, jitter);
+                    windowPacedFrames++;
+                } else if (Thread.interrupted()) {
+                    running = false;
+                    return;
+                }
+
+                if (now - windowStart >= 1000000000L) {
+                    measuredIps = windowInstructions * 1e9 / (now - windowStart);
+                    measuredSpeed = (double) windowFrames * FRAME_NANOS / (now - windowStart);
+                    meanJitterNanos = windowPacedFrames == 0 ? 0 : windowJitter / windowPacedFrames;
+                    maxJitterNanos = windowMaxJitter;
+
+                    windowStart = now;
+                    windowInstructions = 0;
+                    windowFrames = 0;
+                    windowPacedFrames = 0;
+                    windowJitter = 0;
+                    windowMaxJitter = 0;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            running = false;
+        }
+    }
+}
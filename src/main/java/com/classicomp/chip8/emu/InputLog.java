@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Keypad input of a session, keyed by frame number, for bit-exact replay.
+//
+// The core only looks at the keypad when it latches input: at the start
+// of every frame, and when it resumes an FX0A wait in the middle of one.
+// A log entry is kept for every latch that changed something, so
+// replaying the entries at the same latch points, with the same random
+// seed and instructions per frame, reproduces the session exactly.
+//
+// Each entry is packed in a long: frame << 24 | midFrame << 23 |
+// (typed key + 1) << 16 | key mask.
+public class InputLog {
+
+    public static final int MAGIC = 0x4338494c;
+    public static final int VERSION = 1;
+
+    private long seed;
+    private int cyclesPerFrame = FrameScheduler.DEFAULT_CYCLES_PER_FRAME;
+    private long[] entries = new long[256];
+    private int count = 0;
+    private int cursor = 0;
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Last frame with recorded input, or -1 for an empty log
+    public long getLastFrame() {
+        return count == 0 ? -1 : entries[count - 1] >>> 24;
+    }
+
+    void add(long frame, boolean midFrame, int mask, int typed) {
+        if (count == entries.length) {
+            entries = Arrays.copyOf(entries, count * 2);
+        }
+        entries[count++] = (frame << 24) | (midFrame ? 1L << 23 : 0)
+                | ((long) (typed + 1) << 16) | (mask & 0xffff);
+    }
+
+    void rewindCursor() {
+        cursor = 0;
+    }
+
+    // True when the next entry belongs to this frame's mid-frame latches
+    boolean hasMidFrameInput(long frame) {
+        return cursor < count && entries[cursor] >>> 24 == frame
+                && (entries[cursor] & (1L << 23)) != 0;
+    }
+
+    // Applies the next entry to core if it was recorded at this latch
+    void apply(EmulatorCore core, long frame, boolean midFrame) {
+        while (cursor < count && entries[cursor] >>> 24 < frame) {
+            cursor++;
+        }
+        if (cursor == count) {
+            return;
+        }
+        long entry = entries[cursor];
+        if (entry >>> 24 != frame || ((entry & (1L << 23)) != 0) != midFrame) {
+            return;
+        }
+        cursor++;
+        core.latchInput((int) (entry & 0xffff), (int) ((entry >>> 16) & 0x1f) - 1);
+    }
+
+    public void write(Path file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(seed);
+            out.writeInt(cyclesPerFrame);
+            out.writeInt(count);
+            for (int e = 0; e < count; e++) {
+                out.writeLong(entries[e]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static InputLog read(Path file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a Chip-8 input log");
+            }
+            int version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported input log version " + version);
+            }
+            InputLog log = new InputLog();
+            log.seed = in.readLong();
+            log.cyclesPerFrame = in.readInt();
+            log.count = in.readInt();
+            log.entries = new long[Math.max(log.count, 1)];
+            for (int e = 0; e < log.count; e++) {
+                log.entries[e] = in.readLong();
+            }
+            return log;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -16,13 +16,21 @@
  */
 package com.classicomp.chip8.emu;
 
-import java.awt.event.KeyListener;
-import java.awt.event.KeyEvent;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public class Keyboard implements KeyListener {
+// Emulated keypad. Key codes are host codes (the ones AWT reports for
+// the keys below), so the keypad itself does not depend on AWT.
+//
+// The state of the 16 keys is an atomic bitmask, written by the input
+// thread and read by the emulator thread without locking. Releasing a key
+// also records it as typed for FX0A, and wakes the emulator thread if it
+// is parked waiting for one.
+public class Keyboard {
 
-    int pressedKey;
-    int typedKey;
+    private final AtomicInteger pressed = new AtomicInteger(0);
+    private final AtomicInteger typed = new AtomicInteger(-1);
+    private volatile Thread waiter = null;
 
     int[][] keys =
           {
@@ -32,48 +40,94 @@ public class Keyboard implements KeyListener {
             {0x5a, 0x0a}, {0x58, 0x00}, {0x43, 0x0b}, {0x56, 0x0f}
           };
 
-    public Keyboard() {
-        pressedKey = -1;
-        typedKey = -1;
+    public void keyPressed(int keyCode) {
+        int key = keypadKey(keyCode);
+        if (key != -1) {
+            press(key);
+        }
+    }
+
+    public void keyReleased(int keyCode) {
+        int key = keypadKey(keyCode);
+        if (key != -1) {
+            release(key);
+        }
     }
 
-    public void keyPressed(KeyEvent e) {
-        int keyCode = e.getKeyCode();
-        for (int i = 0; i < 12; i++) {
+    private int keypadKey(int keyCode) {
+        for (int i = 0; i < keys.length; i++) {
             if (keys[i][0] == keyCode) {
-                pressedKey = keys[i][1];
+                return keys[i][1];
             }
         }
+        return -1;
+    }
 
-        System.out.println("keyPressed");
-        System.out.println(e.getKeyText(e.getKeyCode()) + " = " + Integer.toHexString(e.getKeyCode()));
+    public void press(int key) {
+        int bit = 1 << key;
+        int old;
+        do {
+            old = pressed.get();
+        } while ((old & bit) == 0 && !pressed.compareAndSet(old, old | bit));
     }
 
-    public void keyReleased(KeyEvent e) {
-        int keyCode = e.getKeyCode();
+    public void release(int key) {
+        int bit = 1 << key;
+        int old;
+        do {
+            old = pressed.get();
+            if ((old & bit) == 0) {
+                return;
+            }
+        } while (!pressed.compareAndSet(old, old & ~bit));
+
+        typed.set(key);
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
 
-        if (pressedKey != -1) {
-            for (int i = 0; i < 12; i++) {
-                if ((keys[i][0] == keyCode) && (keys[i][1] == pressedKey)) {
-                    typedKey = keys[i][1];
-                    pressedKey = -1;
-                }
+    // Sets all 16 keys at once, as a batch or a remote client does; keys
+    // that go up are typed as with release()
+    public void setKeyMask(int mask) {
+        int released = pressed.getAndSet(mask & 0xffff) & ~mask;
+        if (released != 0) {
+            typed.set(Integer.numberOfTrailingZeros(released));
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
             }
         }
+    }
 
+    public boolean isPressed(int key) {
+        return (pressed.get() & (1 << key)) != 0;
     }
 
-    public void keyTyped(KeyEvent e) {
+    // Bit k is set while key k is held down
+    public int getKeyMask() {
+        return pressed.get();
     }
 
-    public int getPressedKey() {
-        return pressedKey;
+    // Returns the last key released since the previous call, or -1
+    public int takeTypedKey() {
+        return typed.getAndSet(-1);
     }
 
-    public int getTypedKey() {
-        int result;
-        result = typedKey;
-        typedKey = -1;
-        return result;
+    public boolean hasTypedKey() {
+        return typed.get() != -1;
+    }
+
+    // Parks the calling thread until a key is typed or nanos elapse
+    public void awaitTypedKey(long nanos) {
+        waiter = Thread.currentThread();
+        try {
+            if (typed.get() == -1) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            waiter = null;
+        }
     }
 }
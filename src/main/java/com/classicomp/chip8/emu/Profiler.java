@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Execution profile of a ROM. Attached to a core it counts every executed
+// address, every 2NNN call target and every backward jump (a loop), and
+// every sampleInterval instructions it records the call chain found in
+// stack/sp. Addresses in the reports are CHIP-8 addresses, as in a ROM
+// listing, not the offsets the core uses internally.
+//
+// The collapsed stacks file has one "main;sub_2A0;sub_31C;0x322 count"
+// line per distinct chain, the format read by flamegraph.pl and the tools
+// derived from it.
+public class Profiler {
+
+    private static final int ORIGIN = 0x0200;
+
+    final long[] pcCounts;
+    final long[] callCounts;
+    final long[] loopCounts;
+    final int[] loopTails;
+
+    final int sampleInterval;
+    int untilSample;
+
+    private long instructions = 0;
+    private long samples = 0;
+    private final Map<String, long[]> stacks = new HashMap<String, long[]>();
+    private final StringBuilder key = new StringBuilder();
+
+    public Profiler() {
+        this(97);
+    }
+
+    // An odd interval keeps samples from locking onto loops of even length
+    public Profiler(int sampleInterval) {
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException("sampleInterval must be positive");
+        }
+        this.sampleInterval = sampleInterval;
+        this.untilSample = sampleInterval;
+        pcCounts = new long[0x1000];
+        callCounts = new long[0x1000];
+        loopCounts = new long[0x1000];
+        loopTails = new int[0x1000];
+    }
+
+    void backEdge(int from, int to) {
+        loopCounts[to]++;
+        if (from > loopTails[to]) {
+            loopTails[to] = from;
+        }
+    }
+
+    void counted(int n) {
+        instructions += n;
+    }
+
+    // Records the chain of subroutines the core is in, outermost first
+    void sample(EmulatorCore core) {
+        untilSample += sampleInterval;
+        samples++;
+
+        key.setLength(0);
+        key.append("main");
+        for (int a = 0; a < core.sp && a < core.stack.length; a++) {
+            key.append(";sub_");
+            int call = core.stack[a] - 2;
+            int entry = call >= 0 && call < core.memory.length ? core.decodedAt(call) : 0;
+            if ((entry >>> 16) == EmulatorCore.OP_CALL) {
+                key.append(hex(entry & 0x0fff));
+            } else {
+                key.append('?');
+            }
+        }
+        key.append(";0x").append(hex(core.pc + ORIGIN));
+
+        String chain = key.toString();
+        long[] count = stacks.get(chain);
+        if (count == null) {
+            count = new long[1];
+            stacks.put(chain, count);
+        }
+        count[0]++;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getCount(int address) {
+        int a = address - ORIGIN;
+        return a >= 0 && a < pcCounts.length ? pcCounts[a] : 0;
+    }
+
+    public void clear() {
+        Arrays.fill(pcCounts, 0);
+        Arrays.fill(callCounts, 0);
+        Arrays.fill(loopCounts, 0);
+        Arrays.fill(loopTails, 0);
+        stacks.clear();
+        instructions = 0;
+        samples = 0;
+        untilSample = sampleInterval;
+    }
+
+    // Prints the limit hottest addresses, subroutines and loops
+    public void printReport(PrintStream out, int limit) {
+        out.println(String.format("%d instructions, %d stack samples", instructions, samples));
+
+        out.println();
+        out.println("Hot addresses");
+        out.println("  address       count      %");
+        for (int a : top(pcCounts, limit)) {
+            out.println(String.format("  %03X   %12d  %5.1f", a + ORIGIN, pcCounts[a],
+                    percent(pcCounts[a])));
+        }
+
+        out.println();
+        out.println("Hot subroutines");
+        out.println("  target        calls");
+        for (int a : top(callCounts, limit)) {
+            out.println(String.format("  %03X   %12d", a + ORIGIN, callCounts[a]));
+        }
+
+        out.println();
+        out.println("Hot loops");
+        out.println("  range     iterations  instructions      %");
+        for (int a : top(loopCounts, limit)) {
+            long body = 0;
+            for (int b = a; b <= loopTails[a]; b++) {
+                body += pcCounts[b];
+            }
+            out.println(String.format("  %03X-%03X %12d  %12d  %5.1f", a + ORIGIN,
+                    loopTails[a] + ORIGIN, loopCounts[a], body, percent(body)));
+        }
+    }
+
+    public void writeCollapsedStacks(Path path) throws IOException {
+        List<String> chains = new ArrayList<String>(stacks.keySet());
+        Collections.sort(chains);
+        BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        try {
+            for (String chain : chains) {
+                out.write(chain);
+                out.write(' ');
+                out.write(Long.toString(stacks.get(chain)[0]));
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private double percent(long count) {
+        return instructions == 0 ? 0 : count * 100.0 / instructions;
+    }
+
+    // Indexes of the limit largest non-zero counts, largest first
+    private static Integer[] top(final long[] counts, int limit) {
+        List<Integer> used = new ArrayList<Integer>();
+        for (int a = 0; a < counts.length; a++) {
+            if (counts[a] != 0) {
+                used.add(a);
+            }
+        }
+        Collections.sort(used, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(counts[b], counts[a]);
+                return c != 0 ? c : a.compareTo(b);
+            }
+        });
+        return used.subList(0, Math.min(limit, used.size())).toArray(new Integer[0]);
+    }
+
+    private static String hex(int value) {
+        String s = Integer.toHexString(value).toUpperCase();
+        return s.length() >= 3 ? s : "000".substring(s.length()) + s;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Keeps the last frames of machine state for rewinding.
+//
+// Every recorded frame is a SaveState image. Each K-th entry is stored
+// whole as a keyframe; the others are stored as a sparse XOR delta
+// against the previous frame, as runs of (u16 offset, u16 length, xor
+// bytes). Entries live in a fixed byte arena used as a ring: when it or
+// the entry table fills up the oldest entries are dropped, along with any
+// delta left without its keyframe.
+//
+// record() is meant to be called once per frame from the emulator thread
+// (EmulatorCore.endFrame does it when a buffer is attached), and rewind()
+// from the same thread.
+public class RewindBuffer {
+
+    // Differing bytes closer than this are merged in one run
+    private static final int RUN_GAP = 4;
+
+    private final int capacity;
+    private final int keyframeInterval;
+    private final byte[] arena;
+
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean[] keyframes;
+    private int oldest = 0;
+    private int count = 0;
+    private int head = 0;
+    private long recorded = 0;
+
+    private byte[] previous = new byte[SaveState.STATE_SIZE];
+    private byte[] current = new byte[SaveState.STATE_SIZE];
+    // Views over the two arrays, used to skip equal bytes eight at a time
+    private ByteBuffer previousView = ByteBuffer.wrap(previous);
+    private ByteBuffer currentView = ByteBuffer.wrap(current);
+    private final byte[] delta = new byte[SaveState.STATE_SIZE * 5 / 4 + 4];
+    private boolean hasPrevious = false;
+
+    private long recordNanos = 0;
+    private long recordCount = 0;
+
+    public RewindBuffer(int capacity, int keyframeInterval, int arenaBytes) {
+        if (capacity < 1 || keyframeInterval < 1 || arenaBytes < 2 * delta.length) {
+            throw new IllegalArgumentException("Rewind buffer too small");
+        }
+        this.capacity = capacity;
+        this.keyframeInterval = keyframeInterval;
+        this.arena = new byte[arenaBytes];
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+        this.keyframes = new boolean[capacity];
+    }
+
+    // Sized for the given number of seconds at 60 frames per second,
+    // with a keyframe every second
+    public static RewindBuffer forSeconds(int seconds) {
+        int capacity = seconds * FrameScheduler.FRAME_RATE;
+        int keyframes = seconds + 1;
+        return new RewindBuffer(capacity, FrameScheduler.FRAME_RATE,
+                keyframes * SaveState.STATE_SIZE * 2 + capacity * 512);
+    }
+
+    public void record(EmulatorCore core) {
+        long start = System.nanoTime();
+
+        currentView.clear();
+        SaveState.write(core, currentView);
+
+        boolean keyframe = !hasPrevious || recorded % keyframeInterval == 0;
+        if (keyframe) {
+            append(current, SaveState.STATE_SIZE, true);
+        } else {
+            append(delta, encodeDelta(), false);
+        }
+
+        swap();
+        hasPrevious = true;
+        recorded++;
+
+        recordNanos += System.nanoTime() - start;
+        recordCount++;
+    }
+
+    // Restores the state recorded frames entries before the newest one
+    // (0 is the newest) and forgets everything recorded after it. Returns
+    // how many frames were actually rewound.
+    public int rewind(EmulatorCore core, int frames) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        frames = Math.min(frames, count - 1);
+        int target = count - 1 - frames;
+
+        int key = target;
+        while (!keyframes[slot(key)]) {
+            key--;
+        }
+
+        byte[] state = current;
+        currentView.clear();
+        System.arraycopy(arena, offsets[slot(key)], state, 0, SaveState.STATE_SIZE);
+        for (int e = key + 1; e <= target; e++) {
+            applyDelta(state, offsets[slot(e)], lengths[slot(e)]);
+        }
+        SaveState.read(core, currentView);
+
+        int last = slot(target);
+        head = offsets[last] + lengths[last];
+        count = target + 1;
+
+        swap();
+        hasPrevious = true;
+        return frames;
+    }
+
+    private void swap() {
+        byte[] array = previous;
+        previous = current;
+        current = array;
+
+        ByteBuffer view = previousView;
+        previousView = currentView;
+        currentView = view;
+    }
+
+    public void clear() {
+        oldest = 0;
+        count = 0;
+        head = 0;
+        recorded = 0;
+        hasPrevious = false;
+    }
+
+    // Number of frames that can currently be rewound
+    public int getAvailableFrames() {
+        return Math.max(0, count - 1);
+    }
+
+    // Bytes held by the buffer, arena and scratch space included
+    public long getMemoryUsage() {
+        return arena.length + 3L * SaveState.STATE_SIZE + delta.length
+                + capacity * 9L;
+    }
+
+    // Bytes of the arena taken by live entries
+    public long getUsedBytes() {
+        long used = 0;
+        for (int e = 0; e < count; e++) {
+            used += lengths[slot(e)];
+        }
+        return used;
+    }
+
+    public long getAverageRecordNanos() {
+        return recordCount == 0 ? 0 : recordNanos / recordCount;
+    }
+
+    private int slot(int entry) {
+        return (oldest + entry) % capacity;
+    }
+
+    private int encodeDelta() {
+        byte[] cur = current;
+        byte[] prev = previous;
+        ByteBuffer curView = currentView;
+        ByteBuffer prevView = previousView;
+        int size = SaveState.STATE_SIZE;
+        int n = 0;
+        int a = 0;
+
+        while (a < size) {
+            while (a + 8 <= size && curView.getLong(a) == prevView.getLong(a)) {
+                a += 8;
+            }
+            if (a >= size) {
+                break;
+            }
+            if (cur[a] == prev[a]) {
+                a++;
+                continue;
+            }
+            int start = a;
+            int last = a;
+            for (a++; a < size && a - last <= RUN_GAP; a++) {
+                if (cur[a] != prev[a]) {
+                    last = a;
+                }
+            }
+            int length = last - start + 1;
+
+            delta[n++] = (byte) (start >>> 8);
+            delta[n++] = (byte) start;
+            delta[n++] = (byte) (length >>> 8);
+            delta[n++] = (byte) length;
+            for (int b = start; b <= last; b++) {
+                delta[n++] = (byte) (cur[b] ^ prev[b]);
+            }
+            a = last + 1;
+        }
+        return n;
+    }
+
+    private void applyDelta(byte[] state, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int start = ((arena[offset] & 0xff) << 8) | (arena[offset + 1] & 0xff);
+            int run = ((arena[offset + 2] & 0xff) << 8) | (arena[offset + 3] & 0xff);
+            offset += 4;
+            for (int b = 0; b < run; b++) {
+                state[start + b] ^= arena[offset++];
+            }
+        }
+    }
+
+    private void append(byte[] data, int length, boolean keyframe) {
+        if (head + length > arena.length) {
+            head = 0;
+        }
+        while (count > 0 && (count == capacity || overlaps(slot(0), head, length))) {
+            dropOldest();
+        }
+        if (count == 0 && !keyframe) {
+            // Nothing left to apply this delta to
+            keyframe = true;
+            data = current;
+            length = SaveState.STATE_SIZE;
+            if (head + length > arena.length) {
+                head = 0;
+            }
+        }
+
+        System.arraycopy(data, 0, arena, head, length);
+        int s = slot(count);
+        offsets[s] = head;
+        lengths[s] = length;
+        keyframes[s] = keyframe;
+        count++;
+        head += length;
+    }
+
+    private boolean overlaps(int s, int start, int length) {
+        return offsets[s] < start + length && offsets[s] + lengths[s] > start;
+    }
+
+    // Drops the oldest entry and every delta that depended on it
+    private void dropOldest() {
+        do {
+            oldest = (oldest + 1) % capacity;
+            count--;
+        } while (count > 0 && !keyframes[oldest]);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// A ROM parsed once into the RAM image a freshly loaded machine starts
+// with, so loading it is a single array copy. Immutable and safe to share
+// between any number of machines and threads. ROMs are identified by the
+// SHA-256 of their bytes, in hex, worked out when first asked for: the
+// security providers behind MessageDigest take tens of milliseconds to
+// load, which a machine started straight from a file does not need.
+public final class RomImage {
+
+    // Room left below the fonts at the top of memory
+    public static final int MAX_SIZE = 0xfff - 80;
+
+    private final String name;
+    private volatile String hash;
+    private final byte[] bytes;
+    final short[] image;
+
+    RomImage(String name, byte[] bytes, String hash) {
+        if (bytes.length > MAX_SIZE) {
+            throw new IllegalArgumentException(name + " is larger than " + MAX_SIZE + " bytes");
+        }
+        this.name = name;
+        this.bytes = bytes;
+        this.hash = hash;
+        // memory not covered by the ROM reads as 0xff, as after reset()
+        image = new short[MAX_SIZE];
+        Arrays.fill(image, (short) 0x00ff);
+        for (int a = 0; a < bytes.length; a++) {
+            image[a] = (short) (bytes[a] & 0xff);
+        }
+    }
+
+    public static RomImage of(String name, byte[] bytes) {
+        byte[] copy = bytes.clone();
+        return new RomImage(name, copy, null);
+    }
+
+    public static RomImage read(Path file) throws IOException {
+        if (Files.size(file) > MAX_SIZE) {
+            throw new IOException(file + " is larger than " + MAX_SIZE + " bytes");
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        return new RomImage(file.getFileName().toString(), bytes, null);
+    }
+
+    // Reads in blocks up to the end of in, which is not closed
+    public static RomImage read(String name, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] block = new byte[MAX_SIZE + 1];
+        int n;
+        while ((n = in.read(block)) != -1) {
+            out.write(block, 0, n);
+            if (out.size() > MAX_SIZE) {
+                throw new IOException(name + " is larger than " + MAX_SIZE + " bytes");
+            }
+        }
+        return new RomImage(name, out.toByteArray(), null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHash() {
+        // racing threads compute the same string
+        if (hash == null) {
+            hash = sha256(bytes);
+        }
+        return hash;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return hex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder out = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            out.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + bytes.length + " bytes, " + getHash().substring(0, 12) + ")";
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// A shared set of RomImages indexed by content hash and by file name.
+// Every distinct ROM is parsed once however often it is added, and
+// starting a machine from the library is EmulatorCore.loadRom(RomImage).
+// Safe for concurrent use.
+//
+// A library can be packed into one archive file, which is mapped and
+// read back without a read call per ROM:
+//   int    magic "C8RL", version, count
+//   count index entries:
+//     short  name length, then the name in UTF-8
+//     byte[32] SHA-256 of the ROM
+//     int    offset of the ROM bytes from the start of the file, length
+//   the ROM bytes
+//
+// Usage: RomLibrary pack ARCHIVE ROM|DIR...
+//        RomLibrary list ARCHIVE
+public class RomLibrary {
+
+    private static final int MAGIC = 0x4338524c; // "C8RL"
+    private static final int VERSION = 1;
+
+    private final ConcurrentMap<String, RomImage> byHash = new ConcurrentHashMap<String, RomImage>();
+    private final ConcurrentMap<String, RomImage> byName = new ConcurrentHashMap<String, RomImage>();
+
+    // Returns the library's image with the same content, adding rom if
+    // there is none
+    public RomImage add(RomImage rom) {
+        RomImage known = byHash.putIfAbsent(rom.getHash(), rom);
+        if (known != null) {
+            rom = known;
+        }
+        byName.putIfAbsent(rom.getName(), rom);
+        return rom;
+    }
+
+    // Same, parsing bytes only when they are not in the library yet
+    public RomImage intern(String name, byte[] bytes) {
+        String hash = RomImage.sha256(bytes);
+        RomImage known = byHash.get(hash);
+        if (known != null) {
+            return known;
+        }
+        return add(new RomImage(name, bytes.clone(), hash));
+    }
+
+    // Same for content that came without a name: the image is named by
+    // its hash and can only be found with get()
+    public RomImage intern(byte[] bytes) {
+        String hash = RomImage.sha256(bytes);
+        RomImage known = byHash.get(hash);
+        if (known != null) {
+            return known;
+        }
+        RomImage rom = new RomImage(hash, bytes.clone(), hash);
+        known = byHash.putIfAbsent(hash, rom);
+        return known != null ? known : rom;
+    }
+
+    // Adds every file of dir that fits in memory and returns how many
+    // new ROMs were found
+    public int addDirectory(Path dir) throws IOException {
+        int before = byHash.size();
+        DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+        try {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && Files.size(file) <= RomImage.MAX_SIZE) {
+                    add(RomImage.read(file));
+                }
+            }
+        } finally {
+            files.close();
+        }
+        return byHash.size() - before;
+    }
+
+    // Adds every ROM of an archive written by writeArchive and returns
+    // how many new ROMs were found. The hashes in the index are trusted.
+    public int addArchive(Path archive) throws IOException {
+        int before = byHash.size();
+        FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(archive + " is too large");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.limit() < 12 || data.getInt() != MAGIC || data.getInt() != VERSION) {
+                throw new IOException(archive + " is not a ROM archive");
+            }
+            int count = data.getInt();
+            byte[] digest = new byte[32];
+            for (int n = 0; n < count; n++) {
+                byte[] name = new byte[data.getShort() & 0xffff];
+                data.get(name);
+                data.get(digest);
+                int offset = data.getInt();
+                int length = data.getInt();
+                if (offset < 0 || length < 0 || length > RomImage.MAX_SIZE
+                        || offset > data.limit() - length) {
+                    throw new IOException(archive + ": bad index entry " + n);
+                }
+                String hash = RomImage.hex(digest);
+                if (byHash.containsKey(hash)) {
+                    byName.putIfAbsent(new String(name, StandardCharsets.UTF_8), byHash.get(hash));
+                    continue;
+                }
+                byte[] bytes = new byte[length];
+                ByteBuffer rom = data.duplicate();
+                rom.position(offset);
+                rom.get(bytes);
+                add(new RomImage(new String(name, StandardCharsets.UTF_8), bytes, hash));
+            }
+        } catch (RuntimeException e) {
+            // a truncated index runs off the end of the mapping
+            throw new IOException(archive + " is damaged", e);
+        } finally {
+            channel.close();
+        }
+        return byHash.size() - before;
+    }
+
+    // Packs every ROM of the library, sorted by name
+    public void writeArchive(Path archive) throws IOException {
+        List<RomImage> roms = getImages();
+        int indexSize = 12;
+        List<byte[]> names = new ArrayList<byte[]>(roms.size());
+        for (RomImage rom : roms) {
+            byte[] name = rom.getName().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            indexSize += 2 + name.length + 32 + 8;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(indexSize);
+        index.putInt(MAGIC).putInt(VERSION).putInt(roms.size());
+        int offset = indexSize;
+        for (int n = 0; n < roms.size(); n++) {
+            RomImage rom = roms.get(n);
+            index.putShort((short) names.get(n).length).put(names.get(n));
+            for (int d = 0; d < 64; d += 2) {
+                index.put((byte) Integer.parseInt(rom.getHash().substring(d, d + 2), 16));
+            }
+            index.putInt(offset).putInt(rom.size());
+            offset += rom.size();
+        }
+        index.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[roms.size() + 1];
+        buffers[0] = index;
+        for (int n = 0; n < roms.size(); n++) {
+            buffers[n + 1] = ByteBuffer.wrap(roms.get(n).bytes());
+        }
+        FileChannel channel = FileChannel.open(archive, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            long remaining = offset;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public RomImage get(String hash) {
+        return byHash.get(hash);
+    }
+
+    public RomImage find(String name) {
+        return byName.get(name);
+    }
+
+    public int size() {
+        return byHash.size();
+    }
+
+    public List<RomImage> getImages() {
+        List<RomImage> roms = new ArrayList<RomImage>(byHash.values());
+        Collections.sort(roms, new Comparator<RomImage>() {
+            @Override
+            public int compare(RomImage a, RomImage b) {
+                int order = a.getName().compareTo(b.getName());
+                return order != 0 ? order : a.getHash().compareTo(b.getHash());
+            }
+        });
+        return roms;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("pack") && args.length > 2 || args[0].equals("list"))) {
+            System.err.println("Usage: RomLibrary pack ARCHIVE ROM|DIR...");
+            System.err.println("       RomLibrary list ARCHIVE");
+            System.exit(2);
+        }
+        RomLibrary library = new RomLibrary();
+        Path archive = Paths.get(args[1]);
+        if (args[0].equals("pack")) {
+            for (int a = 2; a < args.length; a++) {
+                Path path = Paths.get(args[a]);
+                if (Files.isDirectory(path)) {
+                    library.addDirectory(path);
+                } else {
+                    library.add(RomImage.read(path));
+                }
+            }
+            library.writeArchive(archive);
+            System.out.println("Packed " + library.size() + " ROMs into " + archive);
+        } else {
+            library.addArchive(archive);
+            for (RomImage rom : library.getImages()) {
+                System.out.println(String.format("%s  %5d  %s", rom.getHash(), rom.size(), rom.getName()));
+            }
+        }
+    }
+}
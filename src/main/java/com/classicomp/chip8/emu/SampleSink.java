@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Receives AudioEngine's output, 16 bit signed little-endian mono PCM
+// at SAMPLE_RATE. Writes come from the emulation thread and must not
+// block: a sink with no room takes fewer bytes and the rest is dropped.
+public interface SampleSink extends Closeable {
+
+    // Returns how many bytes were taken, an even number
+    int write(byte[] samples, int offset, int length);
+
+    void close() throws IOException;
+}
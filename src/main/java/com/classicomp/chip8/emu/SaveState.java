@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Binary snapshot of an EmulatorCore.
+//
+// Layout (big endian, STATE_SIZE bytes):
+//   int    magic 'C8SS'
+//   short  format version
+//   int    pc, i
+//   byte   sp
+//   short  opcode
+//   byte   delay, sound
+//   byte   v[16]
+//   short  stack[16]
+//   long   frame counter
+//   long   random generator state            (version 2)
+//   short  latched key mask                  (version 2)
+//   byte   latched typed key, -1 for none    (version 2)
+//   byte   memory[0xfff]  (only the low 8 bits of each cell are observable)
+//   long   framebuffer rows[32]
+//
+// Snapshots are written to and read from any ByteBuffer, so callers can
+// reuse one buffer and save without allocating. Files are accessed
+// through memory-mapped buffers.
+public final class SaveState {
+
+    public static final int MAGIC = 0x43385353;
+    public static final int VERSION = 2;
+
+    public static final int MEMORY_SIZE = 0xfff;
+    public static final int STATE_SIZE_V1 = 4 + 2 + 4 + 4 + 1 + 2 + 1 + 1
+            + 16 + 16 * 2 + 8 + MEMORY_SIZE + 32 * 8;
+    public static final int STATE_SIZE = STATE_SIZE_V1 + 8 + 2 + 1;
+
+    // Memory is converted through a per-thread scratch array so it can be
+    // moved with one bulk put or get
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MEMORY_SIZE];
+        }
+    };
+
+    private SaveState() {
+    }
+
+    public static void write(EmulatorCore core, ByteBuffer out) {
+        out.putInt(MAGIC);
+        out.putShort((short) VERSION);
+        out.putInt(core.pc);
+        out.putInt(core.i);
+        out.put((byte) core.sp);
+        out.putShort(core.opcode);
+        out.put(core.delay);
+        out.put(core.sound);
+        out.put(core.v);
+        for (int a = 0; a < 16; a++) {
+            out.putShort((short) core.stack[a]);
+        }
+        out.putLong(core.getFrameCount());
+        out.putLong(core.random);
+        out.putShort((short) core.keyMask);
+        out.put((byte) core.typedKey);
+
+        short[] memory = core.memory;
+        byte[] scratch = SCRATCH.get();
+        for (int a = 0; a < MEMORY_SIZE; a++) {
+            scratch[a] = (byte) memory[a];
+        }
+        out.put(scratch);
+
+        VideoAdapter video = core.video;
+        for (int y = 0; y < 32; y++) {
+            out.putLong(video.getRow(y));
+        }
+    }
+
+    public static void read(EmulatorCore core, ByteBuffer in) throws IOException {
+        if (in.remaining() < STATE_SIZE_V1 || in.getInt() != MAGIC) {
+            throw new IOException("Not a Chip-8 save state");
+        }
+        int version = in.getShort();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported save state version " + version);
+        }
+        if (version == VERSION && in.remaining() < STATE_SIZE - 6) {
+            throw new IOException("Truncated save state");
+        }
+
+        core.pc = in.getInt();
+        core.i = in.getInt();
+        core.sp = in.get() & 0xff;
+        core.opcode = in.getShort();
+        core.delay = in.get();
+        core.sound = in.get();
+        in.get(core.v);
+        for (int a = 0; a < 16; a++) {
+            core.stack[a] = in.getShort();
+        }
+        long frame = in.getLong();
+        if (version >= 2) {
+            core.random = in.getLong();
+            core.keyMask = in.getShort() & 0xffff;
+            core.typedKey = in.get();
+        }
+
+        short[] memory = core.memory;
+        byte[] scratch = SCRATCH.get();
+        in.get(scratch);
+        for (int a = 0; a < MEMORY_SIZE; a++) {
+            memory[a] = (short) (scratch[a] & 0xff);
+        }
+
+        VideoAdapter video = core.video;
+        for (int y = 0; y < 32; y++) {
+            video.setRow(y, in.getLong());
+        }
+
+        core.stateRestored(frame);
+    }
+
+    public static void save(EmulatorCore core, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, STATE_SIZE);
+            write(core, buffer);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static void load(EmulatorCore core, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() < STATE_SIZE_V1) {
+                throw new IOException("Not a Chip-8 save state");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), STATE_SIZE));
+            read(core, buffer);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A file of fixed-size save state slots, mapped once. Checkpointing many
+// sessions into one SnapshotFile costs a copy into the mapping per save
+// and allocates nothing: each slot has its own view of the mapping, made
+// at open, so one slot must not be used by two threads at once.
+public class SnapshotFile implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final ByteBuffer[] views;
+
+    public SnapshotFile(Path file, int slots) throws IOException {
+        if (slots < 1 || (long) slots * SaveState.STATE_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid slot count " + slots);
+        }
+        this.slots = slots;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                (long) slots * SaveState.STATE_SIZE);
+        this.views = new ByteBuffer[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(slot * SaveState.STATE_SIZE);
+            view.limit((slot + 1) * SaveState.STATE_SIZE);
+            views[slot] = view.slice();
+        }
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public void save(int slot, EmulatorCore core) {
+        SaveState.write(core, slice(slot));
+    }
+
+    public void load(int slot, EmulatorCore core) throws IOException {
+        SaveState.read(core, slice(slot));
+    }
+
+    // Flushes the mapped slots to the storage device
+    public void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer slice(int slot) {
+        if (slot < 0 || slot >= slots) {
+            throw new IndexOutOfBoundsException("Slot " + slot);
+        }
+        ByteBuffer view = views[slot];
+        view.clear();
+        return view;
+    }
+}
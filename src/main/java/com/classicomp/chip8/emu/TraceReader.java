@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Reads a file written by TraceRecorder, mapped read-only. Records are
+// addressed by their index since recording started; after the recorder
+// wrapped only getFirst() to getCount() - 1 are still in the file.
+// Addresses are printed as CHIP-8 addresses, as in a ROM listing.
+//
+// Usage: TraceReader info FILE
+//        TraceReader print FILE [--from N] [--count N] [--pc LO[-HI]]
+//            [--op VALUE[/MASK]] [--reg X]
+//        TraceReader diff FILE FILE [--context N]
+public class TraceReader implements Closeable {
+
+    private static final int ORIGIN = 0x0200;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // Selects records to print; a field left at -1 matches anything
+    public static class Filter {
+
+        int pcLow = -1;
+        int pcHigh = -1;
+        int opcode = -1;
+        int opcodeMask = 0xffff;
+        int register = -1;
+
+        // CHIP-8 addresses, both inclusive
+        public Filter pc(int low, int high) {
+            pcLow = low - ORIGIN;
+            pcHigh = high - ORIGIN;
+            return this;
+        }
+
+        public Filter opcode(int value, int mask) {
+            opcode = value & mask;
+            opcodeMask = mask;
+            return this;
+        }
+
+        // Records that changed register x, VF included
+        public Filter register(int x) {
+            register = x;
+            return this;
+        }
+
+        boolean matches(TraceReader trace, long n) {
+            if (pcLow >= 0) {
+                int pc = trace.pc(n);
+                if (pc < pcLow || pc > pcHigh) {
+                    return false;
+                }
+            }
+            if (opcode >= 0 && (trace.opcode(n) & opcodeMask) != opcode) {
+                return false;
+            }
+            if (register >= 0) {
+                if (register == 0xf) {
+                    return n > trace.getFirst() && trace.vf(n) != trace.vf(n - 1);
+                }
+                return trace.register(n) == register;
+            }
+            return true;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long capacity;
+    private final long count;
+
+    public TraceReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    TraceRecorder.HEADER_SIZE);
+            if (header.getInt(0) != TraceRecorder.MAGIC
+                    || header.getInt(4) != TraceRecorder.VERSION
+                    || header.getInt(24) != TraceRecorder.RECORD_SIZE) {
+                throw new IOException(file + " is not a trace file");
+            }
+            capacity = header.getLong(8);
+            count = header.getLong(16);
+
+            long stored = Math.min(count, capacity);
+            int n = (int) ((stored + TraceRecorder.SEGMENT_RECORDS - 1) / TraceRecorder.SEGMENT_RECORDS);
+            segments = new MappedByteBuffer[n];
+            for (int a = 0; a < n; a++) {
+                long records = Math.min(TraceRecorder.SEGMENT_RECORDS,
+                        stored - (long) a * TraceRecorder.SEGMENT_RECORDS);
+                segments[a] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        TraceRecorder.HEADER_SIZE
+                                + (long) a * TraceRecorder.SEGMENT_RECORDS * TraceRecorder.RECORD_SIZE,
+                        records * TraceRecorder.RECORD_SIZE);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Index of the oldest record still in the file
+    public long getFirst() {
+        return Math.max(0, count - capacity);
+    }
+
+    // Index one past the newest record
+    public long getCount() {
+        return count;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // Internal address, as kept by the core
+    public int pc(long n) {
+        return segment(n).getShort(offset(n));
+    }
+
+    public int opcode(long n) {
+        return segment(n).getShort(offset(n) + 2) & 0xffff;
+    }
+
+    // Internal address, as kept by the core
+    public int i(long n) {
+        return segment(n).getShort(offset(n) + 4);
+    }
+
+    public int sp(long n) {
+        return segment(n).get(offset(n) + 6) & 0xff;
+    }
+
+    // The V register changed by the record, or -1
+    public int register(long n) {
+        int reg = segment(n).get(offset(n) + 7) & 0xff;
+        return reg == TraceRecorder.NO_REGISTER ? -1 : reg;
+    }
+
+    public int value(long n) {
+        return segment(n).get(offset(n) + 8) & 0xff;
+    }
+
+    public int vf(long n) {
+        return segment(n).get(offset(n) + 9) & 0xff;
+    }
+
+    private MappedByteBuffer segment(long n) {
+        if (n < getFirst() || n >= count) {
+            throw new IndexOutOfBoundsException("Record " + n);
+        }
+        return segments[(int) ((n % capacity) / TraceRecorder.SEGMENT_RECORDS)];
+    }
+
+    private int offset(long n) {
+        return (int) ((n % capacity) % TraceRecorder.SEGMENT_RECORDS) * TraceRecorder.RECORD_SIZE;
+    }
+
+    // Index of the first record in both traces that differs, counting
+    // only records both still hold. When they agree it is the end of the
+    // shorter trace, or -1 if both end at the same record.
+    public static long diff(TraceReader a, TraceReader b) {
+        long from = Math.max(a.getFirst(), b.getFirst());
+        long to = Math.min(a.count, b.count);
+        for (long n = from; n < to; ) {
+            // walk both files a run of records at a time, without
+            // crossing a segment or wrap boundary in either
+            MappedByteBuffer sa = a.segment(n);
+            MappedByteBuffer sb = b.segment(n);
+            int oa = a.offset(n);
+            int ob = b.offset(n);
+            long run = Math.min(to - n, Math.min((sa.limit() - oa) / TraceRecorder.RECORD_SIZE,
+                    (sb.limit() - ob) / TraceRecorder.RECORD_SIZE));
+            for (long end = n + run; n < end; n++) {
+                if (sa.getLong(oa) != sb.getLong(ob) || sa.getShort(oa + 8) != sb.getShort(ob + 8)) {
+                    return n;
+                }
+                oa += TraceRecorder.RECORD_SIZE;
+                ob += TraceRecorder.RECORD_SIZE;
+            }
+        }
+        return a.count == b.count ? -1 : to;
+    }
+
+    // Prints up to limit records from from on that pass filter (which may
+    // be null) and returns how many were printed
+    public long print(PrintStream out, long from, long limit, Filter filter) {
+        StringBuilder line = new StringBuilder(64);
+        long printed = 0;
+        for (long n = Math.max(from, getFirst()); n < count && printed < limit; n++) {
+            if (filter == null || filter.matches(this, n)) {
+                line.setLength(0);
+                format(line, n);
+                out.println(line);
+                printed++;
+            }
+        }
+        return printed;
+    }
+
+    // "index  PPP  OOOO  I=III  SP=S  VX=KK  VF=KK"
+    public void format(StringBuilder line, long n) {
+        line.append(n).append("  ");
+        hex(line, pc(n) + ORIGIN, 3);
+        line.append("  ");
+        hex(line, opcode(n), 4);
+        line.append("  I=");
+        hex(line, i(n) + ORIGIN, 3);
+        line.append("  SP=").append(sp(n));
+        int reg = register(n);
+        if (reg >= 0) {
+            line.append("  V").append(HEX[reg]).append('=');
+            hex(line, value(n), 2);
+        } else {
+            line.append("       ");
+        }
+        line.append("  VF=");
+        hex(line, vf(n), 2);
+    }
+
+    private static void hex(StringBuilder out, int value, int digits) {
+        for (int d = digits - 1; d >= 0; d--) {
+            out.append(HEX[(value >>> (4 * d)) & 0xf]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        try {
+            System.exit(run(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: TraceReader info FILE");
+            System.err.println("       TraceReader print FILE [--from N] [--count N] [--pc LO[-HI]]"
+                    + " [--op VALUE[/MASK]] [--reg X]");
+            System.err.println("       TraceReader diff FILE FILE [--context N]");
+            System.exit(2);
+        }
+    }
+
+    private static int run(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Missing command or file");
+        }
+        String command = args[0];
+        int files = command.equals("diff") ? 2 : 1;
+        if (args.length < 1 + files) {
+            throw new IllegalArgumentException("Missing file");
+        }
+        long from = 0;
+        long limit = Long.MAX_VALUE;
+        int context = 5;
+        Filter filter = null;
+        for (int a = 1 + files; a < args.length; a++) {
+            String arg = args[a];
+            if (a + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++a];
+            if (arg.equals("--from")) {
+                from = Long.parseLong(value);
+            } else if (arg.equals("--count")) {
+                limit = Long.parseLong(value);
+            } else if (arg.equals("--context")) {
+                context = Integer.parseInt(value);
+            } else if (arg.equals("--pc")) {
+                int dash = value.indexOf('-');
+                int low = Integer.parseInt(dash < 0 ? value : value.substring(0, dash), 16);
+                int high = dash < 0 ? low : Integer.parseInt(value.substring(dash + 1), 16);
+                filter = (filter == null ? new Filter() : filter).pc(low, high);
+            } else if (arg.equals("--op")) {
+                int slash = value.indexOf('/');
+                int op = Integer.parseInt(slash < 0 ? value : value.substring(0, slash), 16);
+                int mask = slash < 0 ? 0xffff : Integer.parseInt(value.substring(slash + 1), 16);
+                filter = (filter == null ? new Filter() : filter).opcode(op, mask);
+            } else if (arg.equals("--reg")) {
+                filter = (filter == null ? new Filter() : filter).register(Integer.parseInt(value, 16));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        TraceReader first = new TraceReader(Paths.get(args[1]));
+        try {
+            if (command.equals("info")) {
+                out.println(String.format("%d records, %d held (from %d), capacity %d",
+                        first.getCount(), first.getCount() - first.getFirst(), first.getFirst(),
+                        first.getCapacity()));
+                return 0;
+            } else if (command.equals("print")) {
+                first.print(out, from, limit, filter);
+                return 0;
+            } else if (command.equals("diff")) {
+                TraceReader second = new TraceReader(Paths.get(args[2]));
+                try {
+                    return diff(out, first, second, context);
+                } finally {
+                    second.close();
+                }
+            }
+            throw new IllegalArgumentException("Unknown command " + command);
+        } finally {
+            out.flush();
+            first.close();
+        }
+    }
+
+    private static int diff(PrintStream out, TraceReader a, TraceReader b, int context) {
+        long n = diff(a, b);
+        long from = Math.max(a.getFirst(), b.getFirst());
+        if (n < 0) {
+            out.println(String.format("Traces match over records %d-%d", from, a.count - 1));
+            return 0;
+        }
+        if (n == Math.min(a.count, b.count)) {
+            out.println(String.format("Traces match over records %d-%d; lengths differ (%d, %d)",
+                    from, n - 1, a.count, b.count));
+            return 1;
+        }
+        out.println("Traces diverge at record " + n);
+        StringBuilder line = new StringBuilder(64);
+        for (long k = Math.max(from, n - context); k <= n; k++) {
+            line.setLength(0);
+            line.append(k == n ? "- " : "  ");
+            a.format(line, k);
+            out.println(line);
+        }
+        line.setLength(0);
+        line.append("+ ");
+        b.format(line, n);
+        out.println(line);
+        return 1;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Records every executed instruction into a memory-mapped file of fixed
+// width records, keeping the last capacity of them. Attached to a core
+// it costs a few stores into the mapping per instruction and allocates
+// nothing; TraceReader reads the file back.
+//
+// The file is a header followed by capacity records of RECORD_SIZE bytes:
+//   pc, opcode, i     shorts, internal addresses as the core keeps them
+//   sp                byte
+//   reg, value        the V register (0-E) the instruction changed and its
+//                     new value, reg is NO_REGISTER when none did
+//   vf                VF after the instruction
+// Record n (counting from the first ever written) is at slot n % capacity.
+public class TraceRecorder implements Closeable {
+
+    static final int MAGIC = 0x43385452; // "C8TR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 10;
+    static final int NO_REGISTER = 0xff;
+
+    // Records per mapped segment, so traces can grow past 2GB
+    static final int SEGMENT_RECORDS = 100000000;
+
+    private static final int COUNT_OFFSET = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long capacity;
+
+    private long count = 0;
+    private long slot = 0;
+    private MappedByteBuffer segment;
+    private int segmentIndex = 0;
+    private int offset = 0;
+
+    public TraceRecorder(Path file, long capacity) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putLong(8, capacity);
+        header.putLong(COUNT_OFFSET, 0);
+        header.putInt(24, RECORD_SIZE);
+
+        int n = (int) ((capacity + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+        segments = new MappedByteBuffer[n];
+        for (int a = 0; a < n; a++) {
+            long records = Math.min(SEGMENT_RECORDS, capacity - (long) a * SEGMENT_RECORDS);
+            segments[a] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) a * SEGMENT_RECORDS * RECORD_SIZE,
+                    records * RECORD_SIZE);
+        }
+        segment = segments[0];
+    }
+
+    // Appends one record. before holds V as it was before the instruction.
+    void record(int pc, short opcode, int i, int sp, byte[] v, byte[] before) {
+        int reg = NO_REGISTER;
+        for (int a = 0; a < 15; a++) {
+            if (v[a] != before[a]) {
+                reg = a;
+                break;
+            }
+        }
+        MappedByteBuffer s = segment;
+        int o = offset;
+        s.putShort(o, (short) pc);
+        s.putShort(o + 2, opcode);
+        s.putShort(o + 4, (short) i);
+        s.put(o + 6, (byte) sp);
+        s.put(o + 7, (byte) reg);
+        s.put(o + 8, reg == NO_REGISTER ? 0 : v[reg]);
+        s.put(o + 9, v[15]);
+
+        count++;
+        if (++slot == capacity) {
+            slot = 0;
+            segmentIndex = 0;
+            segment = segments[0];
+            offset = 0;
+        } else if ((offset = o + RECORD_SIZE) == s.limit()) {
+            segment = segments[++segmentIndex];
+            offset = 0;
+        }
+    }
+
+    // Publishes the record count to the header, called once per batch
+    void commit() {
+        header.putLong(COUNT_OFFSET, count);
+    }
+
+    // Records written since creation, including those overwritten
+    public long getCount() {
+        return count;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // Flushes the mapped records to the storage device
+    public void force() {
+        commit();
+        header.force();
+        for (MappedByteBuffer s : segments) {
+            s.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+}
@@ -16,36 +16,45 @@
  */
 package com.classicomp.chip8.emu;
 
-import java.awt.Graphics;
-import java.awt.Image;
-import java.awt.Color;
-import java.awt.Frame;
-
+import java.util.Arrays;
+
+// In-memory 64x32 framebuffer. Each screen row is packed in a long, with
+// the leftmost pixel in the most significant bit, so a sprite row is
+// drawn with one shift and one XOR and collisions are a single AND.
+//
+// Sprites always start at (x mod 64, y mod 32). Pixels falling past the
+// right or bottom edge are clipped, as on the original interpreter, or
+// wrapped around to the opposite edge when sprite wrapping is enabled.
+//
+// Rows changed since the last frame are tracked in a bitmask. The core
+// calls updateDisplay() once per frame and the display sink pulls the
+// dirty rows from there, so drawing never waits for rendering.
 public class VideoAdapter {
 
-    private byte memory[] = null;
-    private Object display = null;
-    private Object displayContainer = null;
+    private final long rows[];
+    private int dirtyRows = 0;
+    private boolean wrapping = false;
+    private DisplaySink sink = null;
     
     public static final int MEMORY_SIZE = 2048;
 
-    private final byte SCALE = 8;
     private static final int SCREEN_WIDTH = 64;
     private static final int SCREEN_HEIGHT = 32;
 
+    public static final int ALL_ROWS = 0xffffffff;
+
     public VideoAdapter() {
-        memory = new byte[SCREEN_WIDTH * SCREEN_HEIGHT];
+        rows = new long[SCREEN_HEIGHT];
         reset();
     }
 
     public void reset() {
-        for (int i = 0; i < 2048; i++) {
-            memory[i] = 0;
-        }
+        clear();
     }
-    
-    public byte getScale() {
-        return SCALE;
+
+    public void clear() {
+        Arrays.fill(rows, 0L);
+        dirtyRows = ALL_ROWS;
     }
 
     public int getScreenWidth() {
@@ -56,67 +65,92 @@ public class VideoAdapter {
         return SCREEN_HEIGHT;
     }
 
-    public void memoryWrite(int index, byte value)
-            throws RuntimeException {
-        try {
-            memory[index] = value;
-        } catch (ArrayIndexOutOfBoundsException e) {
+    public void setSpriteWrapping(boolean wrapping) {
+        this.wrapping = wrapping;
+    }
+
+    public boolean isSpriteWrapping() {
+        return wrapping;
+    }
+
+    // Pixels of row y, leftmost pixel in the most significant bit
+    public long getRow(int y) {
+        return rows[y];
+    }
+
+    void setRow(int y, long bits) {
+        rows[y] = bits;
+        dirtyRows |= 1 << y;
+    }
+
+    // XORs an 8 pixel sprite row (data, most significant bit first) at
+    // (x, y), with x and y already reduced to the screen. Returns true
+    // when a lit pixel was turned off.
+    public boolean drawSpriteRow(int x, int y, int data) {
+        if (y >= SCREEN_HEIGHT) {
+            if (!wrapping) {
+                return false;
+            }
+            y &= SCREEN_HEIGHT - 1;
+        }
+
+        long bits = (long) (data & 0xff) << 56;
+        bits = wrapping ? Long.rotateRight(bits, x) : bits >>> x;
 
+        long old = rows[y];
+        rows[y] = old ^ bits;
+        if (bits != 0) {
+            dirtyRows |= 1 << y;
         }
+        return (old & bits) != 0;
     }
 
-    public byte memoryRead(int index) throws RuntimeException {
-        try {
-            return memory[index];
-        } catch (ArrayIndexOutOfBoundsException e) {
+    // Single pixel access by linear index (y * 64 + x); indexes outside
+    // the screen read as 0 and ignore writes
+    public void memoryWrite(int index, byte value) {
+        if (index < 0 || index >= MEMORY_SIZE) {
+            return;
+        }
+        long mask = 1L << (63 - (index & 63));
+        if (value != 0) {
+            rows[index >>> 6] |= mask;
+        } else {
+            rows[index >>> 6] &= ~mask;
+        }
+        dirtyRows |= 1 << (index >>> 6);
+    }
 
+    public byte memoryRead(int index) {
+        if (index < 0 || index >= MEMORY_SIZE) {
+            return 0;
         }
-        return 0;
+        return (byte) ((rows[index >>> 6] >>> (63 - (index & 63))) & 1);
     }
 
-    public void setDisplay(Object display) {
-        this.display = display;
+    // Rows changed since the last call, bit y set for row y
+    public int takeDirtyRows() {
+        int dirty = dirtyRows;
+        dirtyRows = 0;
+        return dirty;
     }
 
-    public void setDisplayContainer(Object displayContainer) {
-        this.displayContainer = displayContainer;
+    public boolean isDirty() {
+        return dirtyRows != 0;
+    }
 
-        ((Frame) displayContainer).setResizable(false);
+    public void setDisplaySink(DisplaySink sink) {
+        this.sink = sink;
+    }
 
-        ((Frame) displayContainer).setSize(64 * this.SCALE + 8 + 2,
-                32 * this.SCALE + 50 + 24);
+    public DisplaySink getDisplaySink() {
+        return sink;
     }
 
+    // Presents the current frame, at most once per vertical blank. The
+    // sink is only called when some row changed.
     public void updateDisplay() {
-        Graphics g = (Graphics) display;
-        int k = 0;
-
-        int startX = 8;
-        int startY = 50;
-
-        g.setColor(new Color(170, 170, 0));
-        g.fillRect(startX - 4,
-                startY - 4,
-                (64 * this.SCALE) + 4,
-                (32 * this.SCALE) + 4);
-
-        g.setColor(Color.BLACK);
-        g.drawRect(startX - 2,
-                startY - 2,
-                (64 * this.SCALE) - 2,
-                (32 * this.SCALE) + 0);
-
-        for (int y = startY;
-                y < (this.SCALE * 32 + startY);
-                y += this.SCALE) {
-            for (int x = startX;
-                    x < (this.SCALE * 64 + startX);
-                    x += this.SCALE, k++) {
-                if (memory[k] != 0) {
-                    g.fillRect(x, y, this.SCALE, this.SCALE);
-                }
-            }
+        if (sink != null && dirtyRows != 0) {
+            sink.frameUpdated(this);
         }
-        ((Frame) displayContainer).update(g);
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.emu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Writes the samples to a WAV file, or to a raw PCM file without the
+// header, for runs without an audio device. Samples are staged in a few
+// large blocks that a writer thread saves to the file, so write() never
+// waits on the disk: when every block is still queued for writing it
+// takes what fits and the rest is dropped. An I/O error stops the output
+// and is thrown by close().
+public class WaveFileSink implements SampleSink {
+
+    private static final int HEADER_SIZE = 44;
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int BLOCKS = 4;
+
+    // queued by close() after the last block
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final boolean wave;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BLOCKS);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BLOCKS + 1);
+    private final Thread writer;
+    private ByteBuffer staged = null;
+    private long dataBytes = 0;
+    private volatile IOException failure = null;
+
+    public WaveFileSink(Path file) throws IOException {
+        this(file, true);
+    }
+
+    public WaveFileSink(Path file, boolean wave) throws IOException {
+        this.wave = wave;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (wave) {
+            // the sizes are filled in by close()
+            channel.position(HEADER_SIZE);
+        }
+        for (int b = 0; b < BLOCKS; b++) {
+            free.add(ByteBuffer.allocateDirect(BLOCK_SIZE));
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBlocks();
+            }
+        }, "WaveFileSink " + file.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public int write(byte[] samples, int offset, int length) {
+        if (failure != null) {
+            return length;
+        }
+        int taken = 0;
+        while (taken < length) {
+            if (staged == null) {
+                staged = free.poll();
+                if (staged == null) {
+                    break;
+                }
+            }
+            int n = Math.min(length - taken, staged.remaining());
+            staged.put(samples, offset + taken, n);
+            taken += n;
+            if (!staged.hasRemaining()) {
+                full.add(staged);
+                staged = null;
+            }
+        }
+        dataBytes += taken;
+        return taken;
+    }
+
+    // The writer thread: saves full blocks and hands them back
+    private void writeBlocks() {
+        try {
+            while (true) {
+                ByteBuffer block = full.take();
+                if (block == END) {
+                    return;
+                }
+                block.flip();
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+                block.clear();
+                free.add(block);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Interrupted");
+        }
+    }
+
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (staged != null && staged.position() > 0) {
+                full.add(staged);
+                staged = null;
+            }
+            full.add(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            if (failure == null && wave) {
+                channel.write(header(), 0);
+            }
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        h.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt((int) (36 + dataBytes)).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        h.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16);
+        h.putShort((short) 1); // PCM
+        h.putShort((short) 1); // mono
+        h.putInt(AudioEngine.SAMPLE_RATE);
+        h.putInt(AudioEngine.SAMPLE_RATE * 2);
+        h.putShort((short) 2);
+        h.putShort((short) 16);
+        h.put("data".getBytes(StandardCharsets.US_ASCII)).putInt((int) dataBytes);
+        h.flip();
+        return h;
+    }
+}
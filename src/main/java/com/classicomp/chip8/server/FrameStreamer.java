@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.classicomp.chip8.emu.DisplaySink;
+import com.classicomp.chip8.emu.VideoAdapter;
+
+// Streams framebuffers to remote viewers over non-blocking channels, all
+// served by one selector thread. Each framebuffer is a Source, the display
+// sink of a core; a viewer connects and sends the 4-byte id of the source
+// it wants to watch.
+//
+// Every message is
+//
+//   type:byte seq:int mask:int rows:long[bitCount(mask)]
+//
+// with bit y of mask set for each row sent, bit 63 of a row being the
+// leftmost pixel. A KEYFRAME, the first message a viewer gets, carries
+// the rows as they are; a DELTA carries them XORed with the last ones sent
+// to that viewer, and only the rows that differ. seq counts the frames
+// published by the source.
+//
+// A viewer gets nothing new while its previous message is still being
+// written. The next delta is then taken against what it last received, so
+// when it falls behind the frames it missed are folded into one message.
+public class FrameStreamer implements Runnable {
+
+    public static final byte KEYFRAME = 0;
+    public static final byte DELTA = 1;
+    private static final int HEADER_SIZE = 9;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Map<Integer, Source> sources = new ConcurrentHashMap<Integer, Source>();
+    private final Queue<Source> changed = new ConcurrentLinkedQueue<Source>();
+    // what viewers send after their source id, read and dropped on the
+    // selector thread
+    private final ByteBuffer discarded = ByteBuffer.allocate(64);
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // A framebuffer that viewers can watch. frameUpdated runs on the
+    // emulator thread; the selector thread copies the rows under the
+    // same lock.
+    public class Source implements DisplaySink {
+
+        final int id;
+        final List<Viewer> viewers = new CopyOnWriteArrayList<Viewer>();
+        private final long[] rows = new long[32];
+        private int seq = 0;
+        private volatile boolean queued = false;
+
+        Source(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void frameUpdated(VideoAdapter video) {
+            video.takeDirtyRows();
+            synchronized (this) {
+                for (int y = 0; y < 32; y++) {
+                    rows[y] = video.getRow(y);
+                }
+                seq++;
+            }
+            if (!queued && !viewers.isEmpty()) {
+                queued = true;
+                changed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        synchronized int copy(long[] to) {
+            System.arraycopy(rows, 0, to, 0, 32);
+            return seq;
+        }
+    }
+
+    static class Viewer {
+
+        final SocketChannel channel;
+        final ByteBuffer id = ByteBuffer.allocate(4);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final ByteBuffer payload = ByteBuffer.allocate(32 * 8);
+        final ByteBuffer[] message = new ByteBuffer[] {header, payload};
+        final long[] sent = new long[32];
+        final long[] latest = new long[32];
+        Source source;
+        int sentSeq = -1;
+        boolean writing = false;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public FrameStreamer(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public Source register(int id) {
+        Source source = new Source(id);
+        sources.put(id, source);
+        return source;
+    }
+
+    // Viewers of a removed source are disconnected
+    public void unregister(int id) {
+        Source source = sources.remove(id);
+        if (source != null) {
+            changed.add(source);
+            selector.wakeup();
+        }
+    }
+
+    public long getMessagesSent() {
+        return messages.get();
+    }
+
+    public long getBytesSent() {
+        return bytes.get();
+    }
+
+    // Frames never sent on their own because a viewer was behind
+    public long getFramesCoalesced() {
+        return coalesced.get();
+    }
+
+    public void close() throws IOException {
+        selector.close();
+        server.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        drop(key);
+                    }
+                }
+
+                Source source;
+                while ((source = changed.poll()) != null) {
+                    source.queued = false;
+                    boolean removed = !sources.containsKey(source.id);
+                    for (Viewer viewer : source.viewers) {
+                        SelectionKey key = viewer.channel.keyFor(selector);
+                        if (removed) {
+                            drop(key);
+                        } else if (!viewer.writing) {
+                            try {
+                                send(key, viewer);
+                            } catch (IOException e) {
+                                drop(key);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // closed
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Viewer(channel));
+        }
+    }
+
+    // Reads the id of the source to watch, then only watches for the
+    // viewer going away
+    private void read(SelectionKey key) throws IOException {
+        Viewer viewer = (Viewer) key.attachment();
+        ByteBuffer in = viewer.id;
+        if (viewer.source != null) {
+            in = discarded;
+            in.clear();
+        }
+        if (viewer.channel.read(in) < 0) {
+            throw new IOException("closed");
+        }
+        if (viewer.source == null && !viewer.id.hasRemaining()) {
+            Source source = sources.get(viewer.id.getInt(0));
+            if (source == null) {
+                throw new IOException("no such source");
+            }
+            viewer.source = source;
+            source.viewers.add(viewer);
+            send(key, viewer);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Viewer viewer = (Viewer) key.attachment();
+        flush(key, viewer);
+        if (!viewer.writing) {
+            send(key, viewer);
+        }
+    }
+
+    // Encodes what changed since the last message to this viewer and
+    // starts writing it, if anything changed
+    private void send(SelectionKey key, Viewer viewer) throws IOException {
+        int seq = viewer.source.copy(viewer.latest);
+        if (seq == viewer.sentSeq) {
+            return;
+        }
+
+        boolean keyframe = viewer.sentSeq < 0;
+        if (!keyframe && seq - viewer.sentSeq > 1) {
+            coalesced.addAndGet(seq - viewer.sentSeq - 1);
+        }
+
+        int mask = 0;
+        viewer.payload.clear();
+        for (int y = 0; y < 32; y++) {
+            long row = keyframe ? viewer.latest[y] : viewer.latest[y] ^ viewer.sent[y];
+            if (keyframe || row != 0) {
+                mask |= 1 << y;
+                viewer.payload.putLong(row);
+            }
+        }
+        System.arraycopy(viewer.latest, 0, viewer.sent, 0, 32);
+        viewer.sentSeq = seq;
+        if (mask == 0) {
+            return;
+        }
+        viewer.payload.flip();
+
+        viewer.header.clear();
+        viewer.header.put(keyframe ? KEYFRAME : DELTA).putInt(seq).putInt(mask);
+        viewer.header.flip();
+
+        messages.incrementAndGet();
+        bytes.addAndGet(HEADER_SIZE + viewer.payload.remaining());
+        viewer.writing = true;
+        flush(key, viewer);
+    }
+
+    private void flush(SelectionKey key, Viewer viewer) throws IOException {
+        viewer.channel.write(viewer.message);
+        if (viewer.payload.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            viewer.writing = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void drop(SelectionKey key) {
+        if (key == null) {
+            return;
+        }
+        Viewer viewer = (Viewer) key.attachment();
+        if (viewer != null && viewer.source != null) {
+            viewer.source.viewers.remove(viewer);
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    // Applies one message to a viewer's copy of the rows and returns its
+    // seq; message holds exactly one message
+    public static int apply(ByteBuffer message, long[] rows) {
+        byte type = message.get();
+        int seq = message.getInt();
+        int mask = message.getInt();
+        for (int y = 0; y < 32; y++) {
+            if ((mask & (1 << y)) != 0) {
+                long row = message.getLong();
+                rows[y] = type == KEYFRAME ? row : rows[y] ^ row;
+            } else if (type == KEYFRAME) {
+                rows[y] = 0;
+            }
+        }
+        return seq;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.server;
+
+import com.classicomp.chip8.emu.RomImage;
+
+// Wire format shared by SessionServer and SessionClient. Every request is
+// a command byte followed by its arguments; every reply starts with OK and
+// the results, or ERROR and a message. Numbers are big-endian, strings are
+// DataOutput UTF.
+//
+//   CREATE  flags:byte seed:long cycles:int length:int rom:byte[]  -> id:int
+//   KEY     id:int key:byte pressed:byte                           -> -
+//   STEP    id:int frames:int                                      -> frame
+//   FRAME   id:int                                                 -> frame
+//   CLOSE   id:int                                                 -> -
+//   STATS                                                          -> text:UTF
+//
+// where a frame is count:long rows:long[32], bit 63 of a row being the
+// leftmost pixel.
+final class Protocol {
+
+    static final int DEFAULT_PORT = 8642;
+
+    static final byte CREATE = 1;
+    static final byte KEY = 2;
+    static final byte STEP = 3;
+    static final byte FRAME = 4;
+    static final byte CLOSE = 5;
+    static final byte STATS = 6;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    // CREATE flags
+    static final byte REALTIME = 1;
+    static final byte JIT = 2;
+
+    static final int MAX_ROM_SIZE = RomImage.MAX_SIZE;
+
+    private Protocol() {
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.server;
+
+import java.util.concurrent.ScheduledFuture;
+
+import com.classicomp.chip8.emu.EmulatorCore;
+
+// One hosted machine. Requests from connections and the frames run by the
+// shared scheduler both lock the session, so a core is only ever touched
+// by one thread at a time.
+class Session {
+
+    final int id;
+    final EmulatorCore core;
+    final boolean realtime;
+    volatile ScheduledFuture<?> ticker;
+
+    Session(int id, EmulatorCore core, boolean realtime) {
+        this.id = id;
+        this.core = core;
+        this.realtime = realtime;
+    }
+
+    // Runs up to frames frames and returns how many ran
+    synchronized long runFrames(long frames) throws Exception {
+        return core.getScheduler().runFrames(frames);
+    }
+
+    synchronized long copyFrame(long[] rows) {
+        for (int y = 0; y < rows.length; y++) {
+            rows[y] = core.getVideoAdapter().getRow(y);
+        }
+        return core.getFrameCount();
+    }
+
+    synchronized long getInstructionCount() {
+        return core.getInstructionCount();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Blocking client for SessionServer. One instance is one connection and
+// is not thread-safe; a bot driving sessions from several threads opens
+// one client per thread.
+//
+// Its main is a load generator: it spreads stepped sessions over a number
+// of connections, steps all of them and prints the server statistics.
+//
+// Usage: SessionClient [--port N] [--sessions N] [--connections N]
+//            [--frames N] [--batch N] [--realtime N] ROM
+public class SessionClient {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public SessionClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public int create(byte[] rom, long seed, int cyclesPerFrame, boolean realtime, boolean jit)
+            throws IOException {
+        out.writeByte(Protocol.CREATE);
+        out.writeByte((realtime ? Protocol.REALTIME : 0) | (jit ? Protocol.JIT : 0));
+        out.writeLong(seed);
+        out.writeInt(cyclesPerFrame);
+        out.writeInt(rom.length);
+        out.write(rom);
+        reply();
+        return in.readInt();
+    }
+
+    public void key(int session, int key, boolean pressed) throws IOException {
+        out.writeByte(Protocol.KEY);
+        out.writeInt(session);
+        out.writeByte(key);
+        out.writeByte(pressed ? 1 : 0);
+        reply();
+    }
+
+    // Runs frames frames of a stepped session and copies the screen that
+    // results into rows; returns the session's frame count
+    public long step(int session, int frames, long[] rows) throws IOException {
+        out.writeByte(Protocol.STEP);
+        out.writeInt(session);
+        out.writeInt(frames);
+        return readFrame(rows);
+    }
+
+    public long frame(int session, long[] rows) throws IOException {
+        out.writeByte(Protocol.FRAME);
+        out.writeInt(session);
+        return readFrame(rows);
+    }
+
+    public void close(int session) throws IOException {
+        out.writeByte(Protocol.CLOSE);
+        out.writeInt(session);
+        reply();
+    }
+
+    public String stats() throws IOException {
+        out.writeByte(Protocol.STATS);
+        reply();
+        return in.readUTF();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private long readFrame(long[] rows) throws IOException {
+        reply();
+        long frame = in.readLong();
+        for (int y = 0; y < 32; y++) {
+            long row = in.readLong();
+            if (y < rows.length) {
+                rows[y] = row;
+            }
+        }
+        return frame;
+    }
+
+    private void reply() throws IOException {
+        out.flush();
+        if (in.readByte() != Protocol.OK) {
+            throw new IOException(in.readUTF());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = Protocol.DEFAULT_PORT;
+        int sessions = 1000;
+        int connections = Runtime.getRuntime().availableProcessors();
+        int realtime = 0;
+        int frames = 600;
+        int batch = 60;
+        String rom = null;
+        for (int a = 0; a < args.length; a++) {
+            if (!args[a].startsWith("--")) {
+                rom = args[a];
+            } else if (a + 1 < args.length) {
+                int value = Integer.parseInt(args[++a]);
+                if (args[a - 1].equals("--port")) {
+                    port = value;
+                } else if (args[a - 1].equals("--sessions")) {
+                    sessions = value;
+                } else if (args[a - 1].equals("--connections")) {
+                    connections = value;
+                } else if (args[a - 1].equals("--frames")) {
+                    frames = value;
+                } else if (args[a - 1].equals("--batch")) {
+                    batch = value;
+                } else if (args[a - 1].equals("--realtime")) {
+                    realtime = value;
+                }
+            }
+        }
+        if (rom == null) {
+            System.err.println("Usage: SessionClient [--port N] [--sessions N] [--connections N]"
+                    + " [--frames N] [--batch N] [--realtime N] ROM");
+            System.exit(2);
+        }
+        loadTest(port, Files.readAllBytes(Paths.get(rom)), sessions, connections, realtime,
+                frames, batch);
+    }
+
+    // Creates realtime sessions that keep running in the background, then
+    // runs the stepped ones frames frames each, batch frames per request
+    static void loadTest(final int port, final byte[] rom, int sessions, int connections,
+            int realtime, final int frames, final int batch) throws Exception {
+        SessionClient control = new SessionClient(port);
+        for (int s = 0; s < realtime; s++) {
+            control.create(rom, s, 1000, true, false);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        final List<SessionClient> clients = new ArrayList<SessionClient>();
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            final int count = sessions / connections + (c < sessions % connections ? 1 : 0);
+            results.add(pool.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    SessionClient client = new SessionClient(port);
+                    synchronized (clients) {
+                        clients.add(client);
+                    }
+                    int[] ids = new int[count];
+                    for (int s = 0; s < count; s++) {
+                        ids[s] = client.create(rom, s, 1000, false, false);
+                    }
+                    long[] rows = new long[32];
+                    long stepped = 0;
+                    for (int f = 0; f < frames; f += batch) {
+                        for (int id : ids) {
+                            client.step(id, Math.min(batch, frames - f), rows);
+                            stepped += Math.min(batch, frames - f);
+                        }
+                    }
+                    return stepped;
+                }
+            }));
+        }
+        long total = 0;
+        try {
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%d stepped sessions over %d connections: %d frames in %.2f s,"
+                    + " %.0f frames/s", sessions, connections, total, elapsed / 1e9, total * 1e9 / elapsed));
+
+            // statistics while every session is still open
+            System.out.print(control.stats());
+        } finally {
+            pool.shutdown();
+            for (SessionClient client : clients) {
+                client.close();
+            }
+            control.close();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2006-2021 Alessandro Ramos da Silva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.classicomp.chip8.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.classicomp.chip8.emu.EmulatorCore;
+import com.classicomp.chip8.emu.FrameScheduler;
+import com.classicomp.chip8.emu.RomLibrary;
+
+// Hosts many EmulatorCore sessions in one JVM behind a loopback TCP port
+// (see Protocol). Sessions are either stepped by their client, for bots
+// that want as many frames as they can take, or run in real time at 60
+// frames per second on a scheduler pool shared by every session, so the
+// number of threads does not grow with the number of sessions.
+//
+// Sessions belong to the connection that created them and are closed
+// with it. ROMs are kept in a RomLibrary, so sessions started from the
+// same ROM share one parsed image. With streaming on, viewers can also
+// watch any session's screen through a FrameStreamer, using the session
+// id as the source id.
+//
+// Usage: SessionServer [--port N] [--threads N] [--stream-port N]
+public class SessionServer {
+
+    private final ServerSocket server;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService connections;
+    private final int threads;
+    private FrameStreamer streamer = null;
+
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicInteger realtimeSessions = new AtomicInteger();
+    private final RomLibrary roms = new RomLibrary();
+
+    final LongAdder frames = new LongAdder();
+    final LongAdder instructions = new LongAdder();
+
+    private final long startNanos = System.nanoTime();
+    private final long startHeap;
+    private long lastStatsNanos = startNanos;
+    private long lastFrames = 0;
+    private long lastInstructions = 0;
+
+    public SessionServer(int port, int threads) throws IOException {
+        this.threads = threads;
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        scheduler = Executors.newScheduledThreadPool(threads, daemons("chip8-session"));
+        connections = Executors.newCachedThreadPool(daemons("chip8-connection"));
+        startHeap = usedHeap();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = Protocol.DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int streamPort = -1;
+        for (int a = 0; a + 1 < args.length; a += 2) {
+            if (args[a].equals("--port")) {
+                port = Integer.parseInt(args[a + 1]);
+            } else if (args[a].equals("--threads")) {
+                threads = Integer.parseInt(args[a + 1]);
+            } else if (args[a].equals("--stream-port")) {
+                streamPort = Integer.parseInt(args[a + 1]);
+            } else {
+                System.err.println("Usage: SessionServer [--port N] [--threads N] [--stream-port N]");
+                System.exit(2);
+            }
+        }
+        SessionServer host = new SessionServer(port, threads);
+        System.out.println("Listening on " + host.getPort() + " with " + threads + " threads");
+        if (streamPort >= 0) {
+            System.out.println("Streaming frames on " + host.enableStreaming(streamPort).getPort());
+        }
+        host.serve();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    // Starts a FrameStreamer on port for the sessions created from now on
+    public synchronized FrameStreamer enableStreaming(int port) throws IOException {
+        if (streamer == null) {
+            streamer = new FrameStreamer(port);
+            Thread thread = daemons("chip8-stream").newThread(streamer);
+            thread.start();
+        }
+        return streamer;
+    }
+
+    // Accepts connections until close() is called
+    public void serve() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+        if (streamer != null) {
+            streamer.close();
+        }
+        scheduler.shutdownNow();
+        connections.shutdownNow();
+        sessions.clear();
+    }
+
+    private void handle(Socket socket) {
+        List<Session> owned = new ArrayList<Session>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            long[] rows = new long[32];
+
+            while (true) {
+                byte command;
+                try {
+                    command = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                // arguments are read in full before they are checked, so an
+                // error reply leaves the stream at the next request
+                try {
+                    switch (command) {
+                        case Protocol.CREATE: {
+                            byte flags = in.readByte();
+                            long seed = in.readLong();
+                            int cycles = in.readInt();
+                            int length = in.readInt();
+                            if (length < 0 || length > Protocol.MAX_ROM_SIZE) {
+                                // the stream can't be resynchronized past it
+                                throw new IOException("Bad ROM size " + length);
+                            }
+                            byte[] rom = new byte[length];
+                            in.readFully(rom);
+                            Session session = create(rom, flags, seed, cycles);
+                            owned.add(session);
+                            out.writeByte(Protocol.OK);
+                            out.writeInt(session.id);
+                            break;
+                        }
+                        case Protocol.KEY: {
+                            int id = in.readInt();
+                            int key = in.readByte();
+                            boolean pressed = in.readByte() != 0;
+                            Session session = find(id);
+                            if (key < 0 || key > 15) {
+                                throw new IllegalArgumentException("No such key: " + key);
+                            }
+                            if (pressed) {
+                                session.core.getKeyboard().press(key);
+                            } else {
+                                session.core.getKeyboard().release(key);
+                            }
+                            out.writeByte(Protocol.OK);
+                            break;
+                        }
+                        case Protocol.STEP: {
+                            int id = in.readInt();
+                            int count = in.readInt();
+                            Session session = find(id);
+                            if (session.realtime) {
+                                throw new IllegalArgumentException("Session " + session.id + " runs in real time");
+                            }
+                            step(session, count);
+                            writeFrame(out, session, rows);
+                            break;
+                        }
+                        case Protocol.FRAME:
+                            writeFrame(out, find(in.readInt()), rows);
+                            break;
+                        case Protocol.CLOSE: {
+                            Session session = find(in.readInt());
+                            owned.remove(session);
+                            remove(session);
+                            out.writeByte(Protocol.OK);
+                            break;
+                        }
+                        case Protocol.STATS:
+                            out.writeByte(Protocol.OK);
+                            out.writeUTF(stats());
+                            break;
+                        default:
+                            throw new IOException("Unknown command " + command);
+                    }
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // a bad request or a crashing session only fails that
+                    // command; the connection and its other sessions stay
+                    out.writeByte(Protocol.ERROR);
+                    out.writeUTF(e instanceof IllegalArgumentException ? String.valueOf(e.getMessage()) : e.toString());
+                }
+                out.flush();
+            }
+        } catch (Exception e) {
+            if (!server.isClosed()) {
+                System.err.println(socket.getRemoteSocketAddress() + ": " + e);
+            }
+        } finally {
+            for (Session session : owned) {
+                remove(session);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    Session create(byte[] rom, byte flags, long seed, int cycles) {
+        EmulatorCore core = new EmulatorCore();
+        core.setJitEnabled((flags & Protocol.JIT) != 0);
+        core.loadRom(roms.intern(rom));
+        core.setRandomSeed(seed);
+        core.getScheduler().setCyclesPerFrame(cycles);
+
+        final Session session = new Session(nextId.getAndIncrement(), core,
+                (flags & Protocol.REALTIME) != 0);
+        sessions.put(session.id, session);
+        if (streamer != null) {
+            core.setDisplaySink(streamer.register(session.id));
+        }
+
+        if (session.realtime) {
+            realtimeSessions.incrementAndGet();
+            session.ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (step(session, 1) == 0) {
+                            System.err.println("Session " + session.id + ": halted");
+                            remove(session);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Session " + session.id + ": " + e);
+                        remove(session);
+                    }
+                }
+            }, FrameScheduler.FRAME_NANOS, FrameScheduler.FRAME_NANOS, TimeUnit.NANOSECONDS);
+        }
+        return session;
+    }
+
+    private long step(Session session, int count) throws Exception {
+        long before = session.getInstructionCount();
+        long ran = session.runFrames(count);
+        frames.add(ran);
+        instructions.add(session.getInstructionCount() - before);
+        return ran;
+    }
+
+    private Session find(int id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            throw new IllegalArgumentException("No such session: " + id);
+        }
+        return session;
+    }
+
+    private void remove(Session session) {
+        if (sessions.remove(session.id) == null) {
+            return;
+        }
+        if (session.realtime) {
+            // also ends the task when called from it
+            if (session.ticker != null) {
+                session.ticker.cancel(false);
+            }
+            realtimeSessions.decrementAndGet();
+        }
+        if (streamer != null) {
+            streamer.unregister(session.id);
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, Session session, long[] rows) throws IOException {
+        long frame = session.copyFrame(rows);
+        out.writeByte(Protocol.OK);
+        out.writeLong(frame);
+        for (long row : rows) {
+            out.writeLong(row);
+        }
+    }
+
+    // Totals, plus rates since the previous call
+    synchronized String stats() {
+        long now = System.nanoTime();
+        long totalFrames = frames.sum();
+        long totalInstructions = instructions.sum();
+        double seconds = (now - lastStatsNanos) / 1e9;
+        int count = sessions.size();
+        long heap = usedHeap();
+
+        String text = String.format("sessions %d (%d real time) on %d threads, up %.0f s%n"
+                + "frames %d, %.0f frames/s%n"
+                + "instructions %d, %.2f MIPS%n"
+                + "heap %d KB, about %d KB per session, %d distinct ROMs%n%s",
+                count, realtimeSessions.get(), threads, (now - startNanos) / 1e9,
+                totalFrames, (totalFrames - lastFrames) / seconds,
+                totalInstructions, (totalInstructions - lastInstructions) / seconds / 1e6,
+                heap / 1024, count == 0 ? 0 : Math.max(0, heap - startHeap) / count / 1024, roms.size(),
+                streamer == null ? "" : String.format("streamed %d messages, %d KB, %d frames coalesced%n",
+                        streamer.getMessagesSent(), streamer.getBytesSent() / 1024,
+                        streamer.getFramesCoalesced()));
+
+        lastStatsNanos = now;
+        lastFrames = totalFrames;
+        lastInstructions = totalInstructions;
+        return text;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}